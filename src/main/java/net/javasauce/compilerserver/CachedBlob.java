@@ -0,0 +1,180 @@
+package net.javasauce.compilerserver;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A {@link String} or {@code byte[]} which is identified by its content hash, so that
+ * it only needs to be sent over the channel once.
+ * <p>
+ * The sender keeps a mirror of the receiver's cache, in the form of a {@link SenderCache}. The sender
+ * decides what the receiver holds, and which entries it should evict, so the receiver's cache
+ * does not need to be configured at all. As packets are read in the order they are written,
+ * both sides always agree on the content of the cache.
+ * <p>
+ * If the receiver already holds the content, only the hash is sent. Otherwise, the content is
+ * sent either inline, or as a {@link SharedMemoryBlob}.
+ */
+final class CachedBlob implements Serializable {
+
+    /**
+     * The content hash.
+     */
+    public final String hash;
+    /**
+     * If this blob is a {@link String}, otherwise {@code byte[]}.
+     */
+    public final boolean string;
+    /**
+     * The hashes the receiver must evict from its cache, before caching this blob.
+     */
+    public final String[] evict;
+    /**
+     * The content, if sent via shared memory. The receiver will resolve this to the
+     * {@link String} or {@code byte[]} when the blob is read.
+     */
+    private final @Nullable Object shared;
+    /**
+     * The content, if sent inline. Written as raw data, outside the object stream.
+     * <p>
+     * The sender may provide strings pre-encoded as UTF-8 bytes.
+     */
+    private transient @Nullable Object inline;
+
+    private CachedBlob(String hash, boolean string, String[] evict, @Nullable Object shared, @Nullable Object inline) {
+        this.hash = hash;
+        this.string = string;
+        this.evict = evict;
+        this.shared = shared;
+        this.inline = inline;
+    }
+
+    /**
+     * Get the content carried by this blob.
+     *
+     * @return The {@link String} or {@code byte[]}, or {@code null} if the receiver already holds it.
+     */
+    public @Nullable Object content() {
+        return inline != null ? inline : shared;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(inline != null);
+        if (inline != null) {
+            byte[] bytes = inline instanceof String ? ((String) inline).getBytes(StandardCharsets.UTF_8) : (byte[]) inline;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            inline = string ? new String(bytes, StandardCharsets.UTF_8) : bytes;
+        }
+    }
+
+    static String hash(byte[] bytes, boolean string) {
+        MessageDigest digest = Hashing.sha256();
+        // Make sure a String and byte[] with the same content can never be confused.
+        digest.update((byte) (string ? 'S' : 'B'));
+        return Hashing.toHex(digest.digest(bytes));
+    }
+
+    /**
+     * The sender side of the cache. Tracks which hashes the receiver holds.
+     */
+    static final class SenderCache {
+
+        // Access ordered, eldest entry is the least recently used.
+        private final LinkedHashMap<String, Integer> sizes = new LinkedHashMap<>(16, 0.75F, true);
+        private final long maxSize;
+        private long size;
+
+        SenderCache(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Create the blob to send for the given content.
+         *
+         * @param hash    The content hash.
+         * @param length  The length of the content in bytes.
+         * @param string  If the content is a {@link String}.
+         * @param content A supplier for the content to send, if the receiver doesn't have it.
+         *                Either the {@link String}/{@code byte[]}, or a {@link SharedMemoryBlob}.
+         * @return The blob, or {@code null} if the content is larger than the entire cache.
+         */
+        public @Nullable CachedBlob blobFor(String hash, int length, boolean string, ContentSupplier content) throws IOException {
+            if (length > maxSize) return null;
+
+            if (sizes.get(hash) != null) {
+                return new CachedBlob(hash, string, new String[0], null, null);
+            }
+
+            List<String> evict = new ArrayList<>();
+            Iterator<Map.Entry<String, Integer>> itr = sizes.entrySet().iterator();
+            while (size + length > maxSize && itr.hasNext()) {
+                Map.Entry<String, Integer> eldest = itr.next();
+                size -= eldest.getValue();
+                evict.add(eldest.getKey());
+                itr.remove();
+            }
+            sizes.put(hash, length);
+            size += length;
+
+            Object obj = content.get();
+            return new CachedBlob(
+                    hash,
+                    string,
+                    evict.toArray(new String[0]),
+                    obj instanceof SharedMemoryBlob ? obj : null,
+                    obj instanceof SharedMemoryBlob ? null : obj
+            );
+        }
+    }
+
+    /**
+     * The receiver side of the cache. Holds the content, evicting as instructed by the sender.
+     */
+    static final class ReceiverCache {
+
+        private final Map<String, Object> content = new HashMap<>();
+
+        /**
+         * Resolve the content of the given blob, updating the cache.
+         *
+         * @param blob The blob.
+         * @return The {@link String} or {@code byte[]}.
+         */
+        public Object resolve(CachedBlob blob) throws IOException {
+            for (String hash : blob.evict) {
+                content.remove(hash);
+            }
+            Object obj = blob.content();
+            if (obj == null) {
+                obj = content.get(blob.hash);
+                if (obj == null) throw new IOException("Sender referenced blob " + blob.hash + " which is not cached.");
+            } else {
+                content.put(blob.hash, obj);
+            }
+            // Don't hand out the same mutable array more than once.
+            return obj instanceof byte[] ? ((byte[]) obj).clone() : obj;
+        }
+    }
+
+    interface ContentSupplier {
+
+        Object get() throws IOException;
+    }
+}
@@ -0,0 +1,365 @@
+package net.javasauce.compilerserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression for the channel between {@link RemoteCompiler} and {@link RemoteMain}.
+ * <p>
+ * The client requests a codec with a single byte, before any packets are sent, and the server
+ * replies with the codec it accepted. If compression was accepted, both directions are then
+ * split into frames. Everything written between two flushes forms a frame, so each packet is
+ * usually one frame. Frames above the threshold are deflated, with a preset dictionary of
+ * common class-file, Java source and packet content, as packets are too small to build much
+ * history of their own.
+ * <p>
+ * Requested with the {@code net.javasauce.RemoteCompiler.compression} sysprop. Frames smaller
+ * than the {@code net.javasauce.RemoteCompiler.compressionThreshold} sysprop, in bytes, are sent as-is.
+ */
+final class ChannelCompression {
+
+    static final boolean COMPRESSION = Boolean.getBoolean("net.javasauce.RemoteCompiler.compression");
+    private static final int THRESHOLD = Integer.getInteger("net.javasauce.RemoteCompiler.compressionThreshold", 1024);
+
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    private static final byte FRAME_RAW = 0;
+    private static final byte FRAME_DEFLATE = 1;
+    // Larger writes are split into multiple frames, so neither side needs to hold an entire packet.
+    private static final int MAX_FRAME = 1024 * 1024;
+
+    // Deflate favours the end of the dictionary, so the most common content goes last.
+    private static final byte[] DICTIONARY = String.join("",
+            // Packet content.
+            "net.javasauce.compilerserver.packet.CompileRequestPacket",
+            "net.javasauce.compilerserver.packet.CompileResultPacket",
+            "net.javasauce.compilerserver.Compiler$CompileUnit",
+            "net.javasauce.compilerserver.Compiler$CompileResult",
+            "java.util.ArrayList", "java.util.Collections$EmptyMap", "java.util.LinkedHashMap", "java.util.HashMap",
+            "java.net.URI", "java.lang.String", "Ljava/lang/String;", "Ljava/util/List;", "Ljava/util/Map;", "Ljava/net/URI;",
+            "Ljava/util/UUID;", "java.util.UUID", "leastSigBits", "mostSigBits", "accessOrder", "loadFactor", "threshold", "size",
+            "compilerArgs", "checkOnly", "knownDigests", "compileLog", "javacCrash", "outputDigests",
+            "sourceUri", "sourceBytes", "sourceFile", "file:///",
+            // Class file structure.
+            "java/lang/invoke/LambdaMetafactory", "metafactory", "java/lang/invoke/MethodHandles$Lookup", "Lookup",
+            "java/lang/invoke/MethodHandles", "java/lang/invoke/MethodType", "java/lang/invoke/CallSite", "BootstrapMethods",
+            "InnerClasses", "EnclosingMethod", "NestHost", "NestMembers", "PermittedSubclasses", "Record",
+            "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations", "RuntimeVisibleParameterAnnotations",
+            "Signature", "Exceptions", "ConstantValue", "Deprecated", "Synthetic", "MethodParameters",
+            "java/lang/Enum", "values", "valueOf", "$VALUES", "ordinal", "java/lang/Class", "java/lang/Integer",
+            "java/lang/StringBuilder", "append", "toString", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", "()Ljava/lang/String;",
+            "java/util/List", "java/util/Map", "java/util/Objects", "requireNonNull", "hashCode", "equals", "(Ljava/lang/Object;)Z",
+            "java/lang/Throwable", "java/lang/RuntimeException", "java/lang/IllegalArgumentException", "java/lang/IllegalStateException",
+            "java/lang/System", "out", "Ljava/io/PrintStream;", "java/io/PrintStream", "println",
+            "Ljava/lang/Object;", "(Ljava/lang/String;)V", "Ljava/lang/String;", "java/lang/String",
+            "LocalVariableTable", "LineNumberTable", "StackMapTable", "SourceFile", "Code", "this",
+            "java/lang/Object", "<init>", "<clinit>", "()V", "()I", "()Z", ".java",
+            // Java source.
+            "/**\n     * ", "\n     */\n", "@param ", "@return ", "// ", "import java.util.", "import java.io.",
+            "List<String> ", "Map<String, ", "new ArrayList<>()", "new HashMap<>()", "String.valueOf(", "toString()",
+            "throw new IllegalArgumentException(", "throw new RuntimeException(", "catch (", "try {", "finally {",
+            "} else {", "for (int i = 0; i < ", "; i++) {", "while (", "switch (", "case ", "break;", "default:",
+            "instanceof ", "null", "true", "false", "boolean ", "long ", "double ", "char ", "byte ",
+            "@Override\n    public ", "protected ", "abstract ", "interface ", "extends ", "implements ", "enum ",
+            "static final ", "private final ", "private static ", "public static ", "public final ", "void ",
+            "int ", "String ", "Object ", "this.", "return ", "if (", " == null) ", " != null) ", ") {\n", "}\n",
+            "package ", "import ", "public class ", "\n\n    ", "\n        "
+    ).getBytes(StandardCharsets.ISO_8859_1);
+
+    private ChannelCompression() {
+    }
+
+    /**
+     * Client side of the negotiation.
+     *
+     * @param is        The stream from the server.
+     * @param os        The stream to the server.
+     * @param requested The codec to request.
+     * @return The codec accepted by the server.
+     */
+    public static byte negotiate(InputStream is, OutputStream os, byte requested) throws IOException {
+        os.write(requested);
+        os.flush();
+        int accepted = is.read();
+        if (accepted == -1) throw new EOFException("Server closed the connection during negotiation.");
+        if (accepted != CODEC_NONE && accepted != requested) throw new IOException("Server accepted unknown codec " + accepted);
+        return (byte) accepted;
+    }
+
+    /**
+     * Server side of the negotiation.
+     *
+     * @param is The stream from the client.
+     * @param os The stream to the client.
+     * @return The codec accepted.
+     */
+    public static byte accept(InputStream is, OutputStream os) throws IOException {
+        int requested = is.read();
+        if (requested == -1) throw new EOFException("Client closed the connection during negotiation.");
+        byte accepted = requested == CODEC_DEFLATE ? CODEC_DEFLATE : CODEC_NONE;
+        os.write(accepted);
+        os.flush();
+        return accepted;
+    }
+
+    /**
+     * Writes each flush as a frame, deflating those above the threshold.
+     */
+    static final class Output extends OutputStream {
+
+        private final OutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] header = new byte[9];
+        private byte[] buf = new byte[8192];
+        private byte[] compressed = new byte[0];
+        private int count;
+
+        private long rawBytes;
+        private long wireBytes;
+
+        public Output(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) grow(count + 1);
+            buf[count++] = (byte) b;
+            if (count == MAX_FRAME) writeFrame();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, MAX_FRAME - count);
+                if (count + n > buf.length) grow(count + n);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == MAX_FRAME) writeFrame();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        /**
+         * @return The number of bytes written to this stream.
+         */
+        public long rawBytes() {
+            return rawBytes;
+        }
+
+        /**
+         * @return The number of bytes written to the underlying stream, including frame headers.
+         */
+        public long wireBytes() {
+            return wireBytes;
+        }
+
+        private void grow(int min) {
+            buf = Arrays.copyOf(buf, Math.min(MAX_FRAME, Math.max(min, buf.length * 2)));
+        }
+
+        private void writeFrame() throws IOException {
+            rawBytes += count;
+            if (count >= THRESHOLD) {
+                if (compressed.length < count) compressed = new byte[count];
+                deflater.reset();
+                deflater.setDictionary(DICTIONARY);
+                deflater.setInput(buf, 0, count);
+                deflater.finish();
+                // Give up once it's no smaller than the raw data.
+                int len = 0;
+                while (!deflater.finished() && len < count) {
+                    len += deflater.deflate(compressed, len, count - len);
+                }
+                if (deflater.finished() && len < count) {
+                    writeHeader(FRAME_DEFLATE, len, count);
+                    out.write(header, 0, 9);
+                    out.write(compressed, 0, len);
+                    wireBytes += 9 + len;
+                    count = 0;
+                    return;
+                }
+            }
+            writeHeader(FRAME_RAW, count, 0);
+            out.write(header, 0, 5);
+            out.write(buf, 0, count);
+            wireBytes += 5 + count;
+            count = 0;
+        }
+
+        private void writeHeader(byte type, int length, int rawLength) {
+            header[0] = type;
+            writeInt(1, length);
+            writeInt(5, rawLength);
+        }
+
+        private void writeInt(int off, int v) {
+            header[off] = (byte) (v >>> 24);
+            header[off + 1] = (byte) (v >>> 16);
+            header[off + 2] = (byte) (v >>> 8);
+            header[off + 3] = (byte) v;
+        }
+    }
+
+    /**
+     * Reads frames written by {@link Output}.
+     */
+    static final class Input extends InputStream {
+
+        private final InputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] buf = new byte[8192];
+        private byte[] compressed = new byte[0];
+        private int pos;
+        private int limit;
+
+        private long rawBytes;
+        private long wireBytes;
+
+        public Input(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !readFrame()) return -1;
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !readFrame()) return -1;
+
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * @return The number of bytes read from this stream's frames.
+         */
+        public long rawBytes() {
+            return rawBytes;
+        }
+
+        /**
+         * @return The number of bytes read from the underlying stream, including frame headers.
+         */
+        public long wireBytes() {
+            return wireBytes;
+        }
+
+        private boolean readFrame() throws IOException {
+            int type = in.read();
+            if (type == -1) return false;
+
+            int length = readInt();
+            if (length <= 0 || length > MAX_FRAME) throw new IOException("Invalid frame length " + length);
+            if (type == FRAME_RAW) {
+                ensureBuf(length);
+                readFully(buf, length);
+                limit = length;
+                wireBytes += 5 + length;
+            } else if (type == FRAME_DEFLATE) {
+                int rawLength = readInt();
+                if (rawLength <= 0 || rawLength > MAX_FRAME) throw new IOException("Invalid frame length " + rawLength);
+                if (compressed.length < length) compressed = new byte[length];
+                readFully(compressed, length);
+                ensureBuf(rawLength);
+                inflate(length, rawLength);
+                limit = rawLength;
+                wireBytes += 9 + length;
+            } else {
+                throw new IOException("Unknown frame type " + type);
+            }
+            pos = 0;
+            rawBytes += limit;
+            return true;
+        }
+
+        private void inflate(int length, int rawLength) throws IOException {
+            inflater.reset();
+            inflater.setInput(compressed, 0, length);
+            int n = 0;
+            try {
+                while (n < rawLength) {
+                    int read = inflater.inflate(buf, n, rawLength - n);
+                    if (read == 0) {
+                        if (inflater.needsDictionary()) {
+                            inflater.setDictionary(DICTIONARY);
+                        } else if (inflater.finished() || inflater.needsInput()) {
+                            throw new IOException("Compressed frame is shorter than its declared length.");
+                        }
+                    }
+                    n += read;
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt compressed frame.", ex);
+            }
+        }
+
+        private void ensureBuf(int len) {
+            if (buf.length < len) buf = new byte[Math.max(len, Math.min(MAX_FRAME, buf.length * 2))];
+        }
+
+        private int readInt() throws IOException {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b == -1) throw new EOFException("Unexpected end of frame header.");
+                v = (v << 8) | b;
+            }
+            return v;
+        }
+
+        private void readFully(byte[] b, int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                int read = in.read(b, n, len - n);
+                if (read == -1) throw new EOFException("Unexpected end of frame.");
+                n += read;
+            }
+        }
+    }
+}
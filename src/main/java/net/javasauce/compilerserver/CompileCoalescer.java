@@ -0,0 +1,139 @@
+package net.javasauce.compilerserver;
+
+import net.javasauce.compilerserver.Compiler.CompileResult;
+import net.javasauce.compilerserver.Compiler.CompileUnit;
+import net.javasauce.compilerserver.packet.CompileRequestPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical compile requests which are in flight at the same time.
+ * <p>
+ * Requests are identified by a content hash of their mode, units, arguments and known
+ * output digests. The first request for a given hash runs, any identical request made
+ * before it completes is attached to the same result.
+ * <p>
+ * Enabled with the {@code net.javasauce.RemoteCompiler.coalesce} sysprop, in both
+ * {@link RemoteCompiler} and {@link RemoteMain}. Coalesced callers receive the same
+ * {@link CompileResult} instance, which is mutable. {@link RemoteMain} only serializes it,
+ * {@link RemoteCompiler} gives each caller its own {@link #copy}.
+ */
+final class CompileCoalescer {
+
+    private final Map<String, CompletableFuture<CompileResult>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Run the given request, or attach to an identical request already in flight.
+     *
+     * @param key   The request key, from {@link #key}.
+     * @param start Starts the request, only called if no identical request is in flight.
+     * @return The future result. May be shared with other callers.
+     */
+    public CompletableFuture<CompileResult> coalesce(String key, Supplier<CompletableFuture<CompileResult>> start) {
+        CompletableFuture<CompileResult> future = new CompletableFuture<>();
+        CompletableFuture<CompileResult> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) return existing;
+
+        try {
+            start.get().whenComplete((result, ex) -> {
+                inFlight.remove(key, future);
+                if (ex != null) {
+                    future.completeExceptionally(ex);
+                } else {
+                    future.complete(result);
+                }
+            });
+        } catch (Throwable ex) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Copy a result, so a caller modifying it can't affect any other caller.
+     *
+     * @param result The result.
+     * @return The copy, with its own output map and arrays.
+     */
+    public static CompileResult copy(CompileResult result) {
+        Map<String, byte[]> output = new LinkedHashMap<>();
+        result.output.forEach((name, bytes) -> output.put(name, bytes.clone()));
+        return new CompileResult(
+                output,
+                new LinkedHashMap<>(result.outputDigests),
+                result.success,
+                result.compileLog,
+                result.javacCrash
+        );
+    }
+
+    /**
+     * Stop attaching new requests to those already in flight, for when something
+     * outside the request, such as the classpath, has changed.
+     */
+    public void clear() {
+        inFlight.clear();
+    }
+
+    /**
+     * Compute the content hash of a compile request.
+     * <p>
+     * Covers everything which affects the result, but not the request id.
+     *
+     * @param packet The request.
+     * @return The hash.
+     */
+    public static String key(CompileRequestPacket packet) throws IOException {
+        MessageDigest digest = Hashing.sha256();
+        update(digest, packet.checkOnly ? "check" : "compile");
+        if (packet.knownDigests == null) {
+            update(digest, "full");
+        } else {
+            update(digest, "delta");
+            update(digest, String.valueOf(packet.knownDigests.size()));
+            for (Map.Entry<String, String> entry : new TreeMap<>(packet.knownDigests).entrySet()) {
+                update(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+        }
+
+        List<String> args = packet.compilerArgs;
+        update(digest, String.valueOf(args.size()));
+        for (String arg : args) {
+            update(digest, arg);
+        }
+        List<CompileUnit> units = packet.units;
+        update(digest, String.valueOf(units.size()));
+        byte[] buf = new byte[8192];
+        for (CompileUnit unit : units) {
+            update(digest, unit.sourceUri.toString());
+            long len = 0;
+            try (InputStream is = unit.openInputStream()) {
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    digest.update(buf, 0, read);
+                    len += read;
+                }
+            }
+            // Length suffix, so content can't run into the next unit.
+            update(digest, String.valueOf(len));
+        }
+        return Hashing.toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String str) {
+        digest.update(str.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
@@ -2,14 +2,18 @@ package net.javasauce.compilerserver;
 
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An abstract interface over Java's compiler tooling interface.
@@ -43,6 +47,59 @@ public interface Compiler extends AutoCloseable {
         return new RemoteCompiler(javaExecutable, jvmArgs, compileClasspath);
     }
 
+    /**
+     * Connect to a shared Java compiler daemon, starting one if none is running.
+     * <p>
+     * Daemons are shared between every client on this machine, across JVMs, which uses the
+     * same Java executable, JVM arguments and compile classpath. The daemon is
+     * reached over a loopback TCP port, and exits after a period with no connected clients.
+     * <p>
+     * Closing the returned compiler only disconnects from the daemon.
+     *
+     * @param javaExecutable   The Java executable of the jdk to use. Must have a compiler present.
+     * @param jvmArgs          Any additional JVM arguments.
+     * @param compileClasspath The compile classpath to use.
+     * @return The Compiler.
+     */
+    static Compiler connect(Path javaExecutable, List<String> jvmArgs, Collection<Path> compileClasspath) throws IOException {
+        return RemoteCompiler.connect(javaExecutable, jvmArgs, compileClasspath);
+    }
+
+    /**
+     * Create a compiler which routes each request to one of several JDKs.
+     * <p>
+     * Each request is routed based on the {@code --release}, {@code -target} or {@code -source}
+     * javac argument, to the toolchain of that version. If no such toolchain exists, the closest
+     * newer toolchain is used. Requests which don't specify a version use the newest toolchain.
+     * <p>
+     * Compilers for each toolchain are started on first use, and stopped after 5 minutes idle.
+     *
+     * @param toolchains       The Java executable of each JDK, keyed by its feature version. E.g. {@code 8}, {@code 17}.
+     * @param jvmArgs          Any additional JVM arguments.
+     * @param compileClasspath The compile classpath to use.
+     * @return The Compiler.
+     */
+    static Compiler routing(Map<Integer, Path> toolchains, List<String> jvmArgs, Collection<Path> compileClasspath) {
+        return routing(toolchains, jvmArgs, compileClasspath, 1, 5, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Create a compiler which routes each request to one of several JDKs.
+     * <p>
+     * See {@link #routing(Map, List, Collection)}.
+     *
+     * @param toolchains       The Java executable of each JDK, keyed by its feature version. E.g. {@code 8}, {@code 17}.
+     * @param jvmArgs          Any additional JVM arguments.
+     * @param compileClasspath The compile classpath to use.
+     * @param poolSize         The maximum number of compiler processes to start per toolchain.
+     * @param idleTimeout      How long a toolchain may be idle before its compilers are stopped.
+     * @param unit             The unit of {@code idleTimeout}.
+     * @return The Compiler.
+     */
+    static Compiler routing(Map<Integer, Path> toolchains, List<String> jvmArgs, Collection<Path> compileClasspath, int poolSize, long idleTimeout, TimeUnit unit) {
+        return new RoutingCompiler(toolchains, poolSize, unit.toMillis(idleTimeout), javaExecutable -> of(javaExecutable, jvmArgs, compileClasspath));
+    }
+
     /**
      * Create a wrapper around the Java compiler on the current jdk.
      *
@@ -75,12 +132,110 @@ public interface Compiler extends AutoCloseable {
      */
     CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs);
 
+    /**
+     * Request multiple compilation units be compiled in a single compiler task, only
+     * returning the outputs which have changed.
+     * <p>
+     * The caller provides the digest of each output it already has, usually from
+     * {@link CompileResult#outputDigests} of a previous compile. The result contains the
+     * digest of every output, but only the bytes of outputs whose digest is not already known.
+     * <p>
+     * The default implementation runs a full compile, and computes the digests afterward.
+     *
+     * @param units          The compilation units to compile.
+     * @param extraJavacArgs Any additional Java arguments to provide.
+     * @param knownDigests   The digest of each output already known to the caller. See {@link CompileResult#digest}.
+     * @return The result.
+     */
+    default CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, Map<String, String> knownDigests) {
+        CompileResult result = compile(units, extraJavacArgs);
+        Map<String, byte[]> changed = new LinkedHashMap<>();
+        Map<String, String> digests = new LinkedHashMap<>();
+        result.output.forEach((name, bytes) -> {
+            String digest = CompileResult.digest(bytes);
+            digests.put(name, digest);
+            if (!digest.equals(knownDigests.get(name))) {
+                changed.put(name, bytes);
+            }
+        });
+        return new CompileResult(changed, digests, result.success, result.compileLog, result.javacCrash);
+    }
+
+    /**
+     * Request multiple compilation units be compiled in a single compiler task, streaming
+     * each output to the given listener as soon as javac writes it.
+     * <p>
+     * The listener is called on the calling thread, once at a time, and always before this
+     * method returns. It may make further requests of this compiler. For remote compilers,
+     * outputs which arrive while the listener is busy are queued, so a slow listener holds
+     * them in memory on the client, but never delays other requests. If the listener throws,
+     * the compile still finishes, and the exception is rethrown from this method.
+     * <p>
+     * The default implementation runs a full compile, then passes each output to the listener.
+     *
+     * @param units          The compilation units to compile.
+     * @param extraJavacArgs Any additional Java arguments to provide.
+     * @param listener       The listener to receive each output.
+     * @return The result, without any output.
+     */
+    default CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, OutputListener listener) {
+        CompileResult result = compile(units, extraJavacArgs);
+        result.output.forEach(listener::onOutput);
+        return new CompileResult(Collections.emptyMap(), result.success, result.compileLog, result.javacCrash);
+    }
+
+    /**
+     * Request multiple compilation units be checked in a single compiler task.
+     * <p>
+     * This runs the compiler up to and including flow analysis, but does not generate
+     * any class files. The result has the success state and compiler log of a full compile,
+     * but never any output.
+     * <p>
+     * The default implementation runs a full compile, and discards the output.
+     *
+     * @param units          The compilation units to check.
+     * @param extraJavacArgs Any additional Java arguments to provide.
+     * @return The result.
+     */
+    default CompileResult check(Collection<CompileUnit> units, List<String> extraJavacArgs) {
+        CompileResult result = compile(units, extraJavacArgs);
+        return new CompileResult(Collections.emptyMap(), result.success, result.compileLog, result.javacCrash);
+    }
+
+    /**
+     * Re-scan the directory entries of the compile classpath.
+     * <p>
+     * Following requests made through this compiler see any changes made to those
+     * directories before this call. Watched classpaths pick up changes automatically,
+     * but only once the platform has reported them, which may take a while.
+     * <p>
+     * The default implementation does nothing.
+     */
+    default void rescanClasspath() {
+    }
+
     /**
      * Release any resources and stop any sub-processes.
      */
     @Override
     void close() throws IOException;
 
+    /**
+     * Receives the outputs of a streamed compile.
+     *
+     * @see #compile(Collection, List, OutputListener)
+     */
+    interface OutputListener {
+
+        /**
+         * Called for each output, as soon as it has been written.
+         *
+         * @param name  The name of the output, in the same form as {@link CompileResult#output}.
+         * @param bytes The output.
+         */
+        void onOutput(String name, byte[] bytes);
+    }
+
     final class CompileUnit implements Serializable {
 
         /**
@@ -90,12 +245,107 @@ public interface Compiler extends AutoCloseable {
         public final URI sourceUri;
         /**
          * The string content of the file.
+         * <p>
+         * {@code null} if this unit is backed by a file or UTF-8 bytes, use {@link #getCharContent()} instead.
+         */
+        public final @Nullable String source;
+        /**
+         * The UTF-8 encoded content of the file, if this unit is backed by bytes.
          */
-        public final String source;
+        private final byte @Nullable [] sourceBytes;
+        /**
+         * The absolute path to the source file, if this unit is backed by a file.
+         */
+        private final @Nullable String sourceFile;
 
         public CompileUnit(URI sourceUri, String source) {
+            this(sourceUri, source, null, null);
+        }
+
+        private CompileUnit(URI sourceUri, @Nullable String source, byte @Nullable [] sourceBytes, @Nullable String sourceFile) {
             this.sourceUri = sourceUri;
             this.source = source;
+            this.sourceBytes = sourceBytes;
+            this.sourceFile = sourceFile;
+        }
+
+        /**
+         * Create a compilation unit which is lazily read from a file on disk.
+         * <p>
+         * The file is only read when javac requests its content. For remote compilers, only the
+         * path is sent, and the file is read by the compiler server.
+         *
+         * @param sourceUri The URI describing the location of the source file. Javac
+         *                  expects that packages are present in this URI.
+         * @param file      The UTF-8 encoded file to read.
+         * @return The unit.
+         */
+        public static CompileUnit ofFile(URI sourceUri, Path file) {
+            return new CompileUnit(sourceUri, null, null, file.toAbsolutePath().toString());
+        }
+
+        /**
+         * Create a compilation unit from UTF-8 encoded bytes.
+         * <p>
+         * The bytes are only decoded when javac requests the content.
+         * The array is not copied, and must not be modified afterward.
+         *
+         * @param sourceUri The URI describing the location of the source file. Javac
+         *                  expects that packages are present in this URI.
+         * @param bytes     The UTF-8 encoded content.
+         * @return The unit.
+         */
+        public static CompileUnit ofUtf8(URI sourceUri, byte[] bytes) {
+            return new CompileUnit(sourceUri, null, bytes, null);
+        }
+
+        /**
+         * Create a compilation unit from the remaining UTF-8 encoded bytes in the given buffer.
+         * <p>
+         * The buffer's position is not modified.
+         *
+         * @param sourceUri The URI describing the location of the source file. Javac
+         *                  expects that packages are present in this URI.
+         * @param buffer    The UTF-8 encoded content.
+         * @return The unit.
+         */
+        public static CompileUnit ofUtf8(URI sourceUri, ByteBuffer buffer) {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+                return ofUtf8(sourceUri, buffer.array());
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return ofUtf8(sourceUri, bytes);
+        }
+
+        /**
+         * Get the content of this unit, reading the backing file if required.
+         *
+         * @return The content.
+         */
+        public CharSequence getCharContent() throws IOException {
+            if (source != null) return source;
+
+            return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(getBytes()));
+        }
+
+        /**
+         * Open a stream to the UTF-8 encoded content of this unit.
+         *
+         * @return The stream.
+         */
+        public InputStream openInputStream() throws IOException {
+            if (sourceFile != null) return Files.newInputStream(Paths.get(sourceFile));
+
+            return new ByteArrayInputStream(getBytes());
+        }
+
+        private byte[] getBytes() throws IOException {
+            if (sourceBytes != null) return sourceBytes;
+            if (sourceFile != null) return Files.readAllBytes(Paths.get(sourceFile));
+
+            assert source != null;
+            return source.getBytes(StandardCharsets.UTF_8);
         }
 
         @Override
@@ -103,13 +353,18 @@ public interface Compiler extends AutoCloseable {
             if (o == null || getClass() != o.getClass()) return false;
 
             CompileUnit that = (CompileUnit) o;
-            return sourceUri.equals(that.sourceUri) && source.equals(that.source);
+            return sourceUri.equals(that.sourceUri)
+                   && Objects.equals(source, that.source)
+                   && Arrays.equals(sourceBytes, that.sourceBytes)
+                   && Objects.equals(sourceFile, that.sourceFile);
         }
 
         @Override
         public int hashCode() {
             int result = sourceUri.hashCode();
-            result = 31 * result + source.hashCode();
+            result = 31 * result + Objects.hashCode(source);
+            result = 31 * result + Arrays.hashCode(sourceBytes);
+            result = 31 * result + Objects.hashCode(sourceFile);
             return result;
         }
     }
@@ -125,6 +380,13 @@ public interface Compiler extends AutoCloseable {
          * Each entry is in the form of relative paths, using forward slashes. E.g: {@code my/package/MyClass.class}
          */
         public final Map<String, byte[]> output;
+        /**
+         * The digest of every output, in the same form as {@link #output}.
+         * <p>
+         * Only present when the compile was given known digests, in which case {@link #output}
+         * only contains the outputs which have changed. Otherwise empty.
+         */
+        public final Map<String, String> outputDigests;
         /**
          * If the operation was a success.
          */
@@ -139,10 +401,25 @@ public interface Compiler extends AutoCloseable {
         public final @Nullable Throwable javacCrash;
 
         public CompileResult(Map<String, byte[]> output, boolean success, String compileLog, @Nullable Throwable javacCrash) {
+            this(output, Collections.emptyMap(), success, compileLog, javacCrash);
+        }
+
+        public CompileResult(Map<String, byte[]> output, Map<String, String> outputDigests, boolean success, String compileLog, @Nullable Throwable javacCrash) {
             this.output = output;
+            this.outputDigests = outputDigests;
             this.success = success;
             this.compileLog = compileLog;
             this.javacCrash = javacCrash;
         }
+
+        /**
+         * Compute the digest of an output, as used by {@link #outputDigests}.
+         *
+         * @param bytes The output bytes.
+         * @return The digest.
+         */
+        public static String digest(byte[] bytes) {
+            return Hashing.sha256Hex(bytes);
+        }
     }
 }
@@ -0,0 +1,133 @@
+package net.javasauce.compilerserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches directory trees for changes, using a {@link WatchService}.
+ * <p>
+ * Changes are collected with {@link #drainChanges()}, which handles every event the platform's
+ * {@link WatchService} has delivered by then. Events are queued by the platform in the meantime,
+ * should too many build up, the tree is re-scanned. Events may lag behind the changes themselves,
+ * on Linux this is usually within milliseconds, but polling implementations, such as the JDK's
+ * on macOS, may take several seconds.
+ * <p>
+ * Not all platforms support recursive watches, so every directory in each tree is registered
+ * individually, including any which are created later.
+ */
+class DirectoryWatcher implements Closeable {
+
+    // Guarded by this, keys are only ever taken from the service with the lock held.
+    private final WatchService watchService;
+    private final Map<WatchKey, WatchedDir> keys = new HashMap<>();
+    private final Map<Path, Set<Path>> changes = new LinkedHashMap<>();
+
+    public DirectoryWatcher() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Start watching the given directory tree.
+     *
+     * @param root The root of the tree.
+     */
+    public synchronized void watch(Path root) throws IOException {
+        registerTree(root, root);
+    }
+
+    /**
+     * Collect all changes since the last call.
+     * <p>
+     * A changed path may be a file or directory which was created, modified or deleted.
+     * If the root itself is reported as changed, events were lost and the entire tree
+     * must be re-scanned.
+     *
+     * @return The changed paths, grouped by the root of the tree they are in.
+     */
+    public synchronized Map<Path, Set<Path>> drainChanges() {
+        try {
+            WatchKey key;
+            while ((key = watchService.poll()) != null) {
+                handleKey(key);
+            }
+        } catch (ClosedWatchServiceException ignored) {
+        }
+        if (changes.isEmpty()) return Collections.emptyMap();
+
+        Map<Path, Set<Path>> drained = new LinkedHashMap<>(changes);
+        changes.clear();
+        return drained;
+    }
+
+    private void handleKey(WatchKey key) {
+        WatchedDir dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) continue;
+
+            if (event.kind() == OVERFLOW) {
+                changed(dir.root, dir.root);
+                continue;
+            }
+            Path path = dir.dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Files may have been created before we registered the new directory,
+                // these are picked up when the directory itself is applied, which is after this.
+                try {
+                    registerTree(dir.root, path);
+                } catch (IOException | UncheckedIOException ex) {
+                    changed(dir.root, dir.root);
+                }
+            }
+            changed(dir.root, path);
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Report the given tree as changed on the next {@link #drainChanges()}, so it is re-scanned.
+     *
+     * @param root The root of the tree.
+     */
+    public synchronized void rescanLater(Path root) {
+        changed(root, root);
+    }
+
+    private void changed(Path root, Path path) {
+        changes.computeIfAbsent(root, e -> new LinkedHashSet<>()).add(path);
+    }
+
+    private void registerTree(Path root, Path dir) throws IOException {
+        try (Stream<Path> dirStream = Files.walk(dir)) {
+            for (Path path : ((Iterable<Path>) dirStream::iterator)) {
+                if (!Files.isDirectory(path)) continue;
+
+                WatchKey key = path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                keys.put(key, new WatchedDir(root, path));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        watchService.close();
+    }
+
+    private static final class WatchedDir {
+
+        public final Path root;
+        public final Path dir;
+
+        private WatchedDir(Path root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+    }
+}
@@ -9,9 +9,11 @@ import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import java.io.*;
 import java.net.URI;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -26,33 +28,217 @@ import java.util.zip.ZipFile;
  * exponentially worse on J11/J17 as they use NIO ZipFS, which completely tanks performance.
  * <p>
  * This class implements a shared cache for both the Java8 bootstrap classpath and the regular classpath,
- * indexing the jars/dirs once on creation.
+ * indexing the jars/dirs once on creation. Entries are indexed in parallel.
+ * <p>
+ * With the {@code net.javasauce.RemoteCompiler.lazyIndex} sysprop, the packages provided by each jar are
+ * cached on disk. Once cached, a jar is only opened and indexed when one of its packages is first listed.
+ * The cache lives in {@code <tmpdir>/compilerserver-index-<user>}, see {@link PrivateDirectory}. Entries
+ * which have not been used for 30 days are pruned, once per JVM.
+ * <p>
+ * With the {@code net.javasauce.RemoteCompiler.watchClasspath} sysprop, directory entries are watched
+ * for changes. Changes are applied by {@link #applyChanges()}, which is expected to be called before each compile.
+ * Changes are only seen once the platform has delivered their events, which may lag behind the change itself,
+ * see {@link DirectoryWatcher}. {@link #rescan()} re-indexes every directory entry, for callers which need
+ * a guaranteed up-to-date index.
  * <p>
  * This implementation of shared classpath lacks the ability for javac to inherit the running JVM's classpath.
  */
 // TODO support jmods? Tried to do this before, quite complicated and weird.
 class FastJavacClasspathIndex implements Closeable {
 
+    private static final boolean LAZY = Boolean.getBoolean("net.javasauce.RemoteCompiler.lazyIndex");
+    private static final Path PACKAGE_CACHE_DIR = PrivateDirectory.inTemp("compilerserver-index");
+    private static final int PACKAGE_CACHE_MAX_AGE = 30;
+    private static boolean packageCacheReady;
+    private static final boolean WATCH = Boolean.getBoolean("net.javasauce.RemoteCompiler.watchClasspath");
+
     private final List<ZipFile> openZips = new ArrayList<>();
-    private final Map<JavaFileManager.Location, Map<String, List<JavaFileObject>>> index = new HashMap<>();
+    private final @Nullable DirectoryWatcher watcher;
+
+    // The roots for each location, in classpath order. Guarded by this.
+    private final Map<JavaFileManager.Location, List<Root>> roots = new HashMap<>();
+    // The roots which provide each package folder, in classpath order.
+    // Immutable, replaced whenever roots are added or change.
+    private volatile Map<JavaFileManager.Location, Map<String, List<Root>>> index = Collections.emptyMap();
+
+    public FastJavacClasspathIndex() throws IOException {
+        watcher = WATCH ? new DirectoryWatcher() : null;
+    }
 
     public void addPath(JavaFileManager.Location location, Path path) throws IOException {
+        addPaths(location, Collections.singletonList(path));
+    }
+
+    /**
+     * Index the given classpath entries in parallel.
+     * <p>
+     * The resulting index preserves the order of the given entries.
+     *
+     * @param location The location to index the entries for.
+     * @param paths    The entries.
+     */
+    public void addPaths(JavaFileManager.Location location, List<Path> paths) throws IOException {
+        if (paths.isEmpty()) return;
+        if (LAZY) preparePackageCache();
+
+        // Our own threads, indexing is blocking IO and shouldn't starve other users of the common pool.
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(paths.size(), Runtime.getRuntime().availableProcessors()), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("Classpath Indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Root> roots = new ArrayList<>(paths.size());
+        try {
+            List<Future<Root>> tasks = new ArrayList<>(paths.size());
+            for (Path path : paths) {
+                tasks.add(executor.submit(() -> createRoot(path)));
+            }
+            for (Future<Root> task : tasks) {
+                try {
+                    roots.add(task.get());
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException("Interrupted whilst indexing classpath.", ex);
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        synchronized (this) {
+            List<Root> locationRoots = this.roots.computeIfAbsent(location, e -> new ArrayList<>());
+            for (Root root : roots) {
+                if (root == null) continue;
+
+                locationRoots.add(root);
+                if (watcher != null && root instanceof DirectoryRoot) {
+                    watcher.watch(((DirectoryRoot) root).dir);
+                }
+            }
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Apply any changes to watched directories, since the last call.
+     * <p>
+     * Changes are applied atomically, file managers which have already been
+     * created continue to see the index as it was when they were created.
+     * <p>
+     * Should a directory change whilst it is being indexed, it is fully re-scanned,
+     * or if that also fails, re-scanned again on the next call.
+     */
+    public synchronized void applyChanges() {
+        if (watcher == null) return;
+
+        Map<Path, Set<Path>> changes = watcher.drainChanges();
+        if (changes.isEmpty()) return;
+
+        try {
+            for (List<Root> locationRoots : roots.values()) {
+                for (ListIterator<Root> itr = locationRoots.listIterator(); itr.hasNext(); ) {
+                    Root root = itr.next();
+                    if (!(root instanceof DirectoryRoot)) continue;
+
+                    DirectoryRoot dirRoot = (DirectoryRoot) root;
+                    Set<Path> changed = changes.get(dirRoot.dir);
+                    if (changed == null) continue;
+
+                    itr.set(applyChanges(watcher, dirRoot, changed));
+                }
+            }
+        } finally {
+            rebuildIndex();
+        }
+    }
+
+    private static DirectoryRoot applyChanges(DirectoryWatcher watcher, DirectoryRoot root, Set<Path> changed) {
+        try {
+            return root.withChanges(changed);
+        } catch (IOException | UncheckedIOException ex) {
+            // Most likely something was deleted as we walked it, a build may still be writing here.
+        }
+        try {
+            return new DirectoryRoot(root.dir, indexDirectory(root.dir));
+        } catch (IOException | UncheckedIOException ex) {
+            // Still changing, keep what we had and try again before the next compile.
+            watcher.rescanLater(root.dir);
+            return root;
+        }
+    }
+
+    /**
+     * Re-index every directory entry, so the index reflects any changes made before this call.
+     * <p>
+     * Like {@link #applyChanges()}, this is applied atomically.
+     */
+    public synchronized void rescan() throws IOException {
+        try {
+            for (List<Root> locationRoots : roots.values()) {
+                for (ListIterator<Root> itr = locationRoots.listIterator(); itr.hasNext(); ) {
+                    Root root = itr.next();
+                    if (!(root instanceof DirectoryRoot)) continue;
+
+                    Path dir = ((DirectoryRoot) root).dir;
+                    itr.set(new DirectoryRoot(dir, indexDirectory(dir)));
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            // Roots which were re-scanned before a failure are still applied.
+            rebuildIndex();
+        }
+    }
+
+    private void rebuildIndex() {
+        Map<JavaFileManager.Location, Map<String, List<Root>>> index = new HashMap<>();
+        for (Map.Entry<JavaFileManager.Location, List<Root>> entry : roots.entrySet()) {
+            Map<String, List<Root>> locationIndex = new HashMap<>();
+            for (Root root : entry.getValue()) {
+                for (String pkg : root.packages()) {
+                    locationIndex.computeIfAbsent(pkg, e -> new ArrayList<>()).add(root);
+                }
+            }
+            index.put(entry.getKey(), locationIndex);
+        }
+        this.index = index;
+    }
+
+    private @Nullable Root createRoot(Path path) throws IOException {
         String fName = path.getFileName().toString();
 
         if (fName.endsWith(".jar") || fName.endsWith(".zip")) {
-            indexZip(location, path.toFile());
+            if (LAZY) {
+                Set<String> packages = readPackageCache(path);
+                if (packages != null) return new LazyZipRoot(path.toFile(), packages);
+            }
+            IndexedRoot root = new IndexedRoot(indexZip(path.toFile()));
+            if (LAZY) {
+                writePackageCache(path, root.packages());
+            }
+            return root;
         } else if (fName.endsWith(".jmod")) {
             // Ignore jmods, we let Javac handle these for now.
+            return null;
         } else if (Files.isDirectory(path)) {
-            indexDirectory(location, path);
+            return new DirectoryRoot(path, indexDirectory(path));
         } else {
             throw new IllegalArgumentException("Unknown file type, can't index. " + path);
         }
     }
 
-    private void indexZip(JavaFileManager.Location location, File file) throws IOException {
+    private Map<String, List<JavaFileObject>> indexZip(File file) throws IOException {
         ZipFile zip = new ZipFile(file);
-        openZips.add(zip);
+        synchronized (openZips) {
+            openZips.add(zip);
+        }
+        Map<String, List<JavaFileObject>> entries = new HashMap<>();
         for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
             ZipEntry entry = e.nextElement();
             if (entry.isDirectory()) continue;
@@ -61,32 +247,44 @@ class FastJavacClasspathIndex implements Closeable {
             if (fPath.startsWith("/")) {
                 fPath = fPath.substring(1);
             }
-            addEntry(location, new ZipFileObject(file, zip, entry, fPath));
+            addEntry(entries, new ZipFileObject(file, zip, entry, fPath));
         }
+        return entries;
+    }
+
+    private static Map<String, List<JavaFileObject>> indexDirectory(Path dir) throws IOException {
+        Map<String, List<JavaFileObject>> entries = new HashMap<>();
+        indexDirectory(entries, dir, dir);
+        return entries;
     }
 
-    private void indexDirectory(JavaFileManager.Location location, Path dir) throws IOException {
+    private static void indexDirectory(Map<String, List<JavaFileObject>> entries, Path root, Path dir) throws IOException {
         try (Stream<Path> dirStream = Files.walk(dir)) {
             for (Path path : ((Iterable<Path>) dirStream::iterator)) {
                 if (Files.isDirectory(path)) continue;
 
-                String fPath = dir.relativize(path).toString().replace('\\', '/');
-                addEntry(location, new PathObject(path, fPath));
+                addEntry(entries, new PathObject(path, relativeName(root, path)));
             }
         }
     }
 
-    private void addEntry(JavaFileManager.Location location, JavaFileObject obj) {
-        String name = obj.getName();
-        int lastSlash = name.lastIndexOf("/");
-        String baseName = (lastSlash == -1 ? "" : name.substring(0, lastSlash)) + "/";
+    private static String relativeName(Path root, Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
 
-        index.computeIfAbsent(location, e -> new HashMap<>())
-                .computeIfAbsent(baseName, e -> new ArrayList<>())
+    private static void addEntry(Map<String, List<JavaFileObject>> entries, JavaFileObject obj) {
+        entries.computeIfAbsent(parentFolder(obj.getName()), e -> new ArrayList<>())
                 .add(obj);
     }
 
+    private static String parentFolder(String name) {
+        int lastSlash = name.lastIndexOf("/");
+        return (lastSlash == -1 ? "" : name.substring(0, lastSlash)) + "/";
+    }
+
     public JavaFileManager fileManager(JavaFileManager delegate) {
+        // Snapshot the index, so changes to watched directories don't apply mid-compile.
+        Map<JavaFileManager.Location, Map<String, List<Root>>> index = this.index;
         return new ForwardingJavaFileManager<JavaFileManager>(delegate) {
 
             @Override
@@ -105,7 +303,7 @@ class FastJavacClasspathIndex implements Closeable {
 
             @Override
             public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
-                Map<String, List<JavaFileObject>> locationIndex = index.get(location);
+                Map<String, List<Root>> locationIndex = index.get(location);
                 if (locationIndex == null) {
                     return super.list(location, packageName, kinds, recurse);
                 }
@@ -114,29 +312,222 @@ class FastJavacClasspathIndex implements Closeable {
                 // TODO perhaps we should replace this with FastStream again.
                 Stream<JavaFileObject> toFilter;
                 if (!recurse) {
-                    List<JavaFileObject> entries = locationIndex.get(folder);
-                    if (entries == null) return Collections.emptyList();
+                    List<Root> roots = locationIndex.get(folder);
+                    if (roots == null) return Collections.emptyList();
 
-                    toFilter = entries.stream();
+                    toFilter = listRoots(roots, folder);
                 } else {
                     toFilter = locationIndex.entrySet().stream()
                             .filter(e -> e.getKey().startsWith(folder))
-                            .flatMap(e -> e.getValue().stream());
+                            .flatMap(e -> listRoots(e.getValue(), e.getKey()));
                 }
 
                 if (!kinds.isEmpty()) {
                     toFilter = toFilter.filter(e -> kinds.contains(e.getKind()));
                 }
-                return toFilter.collect(Collectors.toList());
+                try {
+                    return toFilter.collect(Collectors.toList());
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
 
             }
         };
     }
 
+    private Stream<JavaFileObject> listRoots(List<Root> roots, String folder) {
+        return roots.stream().flatMap(root -> {
+            try {
+                return root.list(folder).stream();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    // Creates the cache directory, or checks it is still ours, and prunes unused entries.
+    private static synchronized void preparePackageCache() throws IOException {
+        PrivateDirectory.ensure(PACKAGE_CACHE_DIR);
+        if (packageCacheReady) return;
+
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(PACKAGE_CACHE_MAX_AGE);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(PACKAGE_CACHE_DIR)) {
+            for (Path file : stream) {
+                try {
+                    // Includes temp files left behind by a JVM which died whilst writing.
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException ignored) {
+                    // Another JVM may be pruning at the same time.
+                }
+            }
+        }
+        packageCacheReady = true;
+    }
+
+    private static @Nullable Set<String> readPackageCache(Path zip) throws IOException {
+        Path cacheFile = packageCacheFile(zip);
+        if (!Files.exists(cacheFile)) return null;
+
+        try {
+            Set<String> packages = new HashSet<>(Files.readAllLines(cacheFile, StandardCharsets.UTF_8));
+            // Keep entries which are still in use from being pruned.
+            Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(System.currentTimeMillis()));
+            return packages;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private static void writePackageCache(Path zip, Set<String> packages) throws IOException {
+        Path cacheFile = packageCacheFile(zip);
+        Path tmp = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+        Files.write(tmp, packages, StandardCharsets.UTF_8);
+        Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path packageCacheFile(Path zip) throws IOException {
+        // Key on the size and modified time as well, so a replaced jar is re-indexed.
+        String key = zip.toAbsolutePath() + "\0" + Files.size(zip) + "\0" + Files.getLastModifiedTime(zip).toMillis();
+        return PACKAGE_CACHE_DIR.resolve(Hashing.sha256Hex(key.getBytes(StandardCharsets.UTF_8)) + ".packages");
+    }
+
     @Override
     public void close() throws IOException {
-        for (ZipFile zip : openZips) {
-            zip.close();
+        if (watcher != null) {
+            watcher.close();
+        }
+        synchronized (openZips) {
+            for (ZipFile zip : openZips) {
+                zip.close();
+            }
+        }
+    }
+
+    /**
+     * A single classpath entry.
+     */
+    private interface Root {
+
+        /**
+         * @return The package folders this root provides. E.g: {@code java/lang/}
+         */
+        Set<String> packages();
+
+        /**
+         * List the files in the given package folder.
+         *
+         * @param folder The package folder.
+         * @return The files.
+         */
+        List<JavaFileObject> list(String folder) throws IOException;
+    }
+
+    /**
+     * A root which has been fully indexed.
+     */
+    private static class IndexedRoot implements Root {
+
+        protected final Map<String, List<JavaFileObject>> entries;
+
+        public IndexedRoot(Map<String, List<JavaFileObject>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public Set<String> packages() {
+            return entries.keySet();
+        }
+
+        @Override
+        public List<JavaFileObject> list(String folder) {
+            return entries.getOrDefault(folder, Collections.emptyList());
+        }
+    }
+
+    /**
+     * A directory root, which can be updated as files change.
+     */
+    private static class DirectoryRoot extends IndexedRoot {
+
+        private final Path dir;
+
+        public DirectoryRoot(Path dir, Map<String, List<JavaFileObject>> entries) {
+            super(entries);
+            this.dir = dir;
+        }
+
+        /**
+         * Create a copy of this root, with the given paths updated to match the disk.
+         *
+         * @param changed The paths which changed.
+         * @return The new root.
+         */
+        public DirectoryRoot withChanges(Set<Path> changed) throws IOException {
+            // Events were lost, rescan everything.
+            if (changed.contains(dir)) return new DirectoryRoot(dir, indexDirectory(dir));
+
+            Map<String, List<JavaFileObject>> entries = new HashMap<>(this.entries);
+            for (Path path : changed) {
+                String name = relativeName(dir, path);
+                // Remove the path, and everything under it, should it have been a directory.
+                entries.keySet().removeIf(e -> e.startsWith(name + "/"));
+                entries.computeIfPresent(parentFolder(name), (k, v) -> {
+                    List<JavaFileObject> list = new ArrayList<>(v);
+                    list.removeIf(e -> e.getName().equals(name));
+                    return list.isEmpty() ? null : list;
+                });
+
+                Map<String, List<JavaFileObject>> added = new HashMap<>();
+                if (Files.isDirectory(path)) {
+                    indexDirectory(added, dir, path);
+                } else if (Files.exists(path)) {
+                    addEntry(added, new PathObject(path, name));
+                }
+                // Copy the lists, they may still be in use by an older snapshot.
+                added.forEach((folder, files) -> entries.compute(folder, (k, v) -> {
+                    List<JavaFileObject> list = v == null ? new ArrayList<>() : new ArrayList<>(v);
+                    list.addAll(files);
+                    return list;
+                }));
+            }
+            return new DirectoryRoot(dir, entries);
+        }
+    }
+
+    /**
+     * A zip which is only opened and indexed the first time one of its packages is listed.
+     */
+    private class LazyZipRoot implements Root {
+
+        private final File file;
+        private final Set<String> packages;
+        private volatile @Nullable Map<String, List<JavaFileObject>> entries;
+
+        public LazyZipRoot(File file, Set<String> packages) {
+            this.file = file;
+            this.packages = packages;
+        }
+
+        @Override
+        public Set<String> packages() {
+            return packages;
+        }
+
+        @Override
+        public List<JavaFileObject> list(String folder) throws IOException {
+            Map<String, List<JavaFileObject>> entries = this.entries;
+            if (entries == null) {
+                synchronized (this) {
+                    entries = this.entries;
+                    if (entries == null) {
+                        entries = indexZip(file);
+                        this.entries = entries;
+                    }
+                }
+            }
+            return entries.getOrDefault(folder, Collections.emptyList());
         }
     }
 
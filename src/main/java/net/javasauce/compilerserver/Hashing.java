@@ -0,0 +1,45 @@
+package net.javasauce.compilerserver;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 helpers, used for content hashes and cache keys.
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * @return A new SHA-256 digest.
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("SHA-256 not available?", ex);
+        }
+    }
+
+    /**
+     * @param bytes The bytes to hash.
+     * @return The SHA-256 hash of the bytes, as lowercase hex.
+     */
+    public static String sha256Hex(byte[] bytes) {
+        return toHex(sha256().digest(bytes));
+    }
+
+    /**
+     * @param bytes The bytes.
+     * @return The bytes as lowercase hex.
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
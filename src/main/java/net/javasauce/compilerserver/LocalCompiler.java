@@ -23,9 +23,7 @@ class LocalCompiler implements Compiler {
 
     public LocalCompiler(Collection<Path> compileClasspath) throws IOException {
         index = new FastJavacClasspathIndex();
-        for (Path path : compileClasspath) {
-            index.addPath(StandardLocation.CLASS_PATH, path);
-        }
+        index.addPaths(StandardLocation.CLASS_PATH, new ArrayList<>(compileClasspath));
         // TODO, FastJavacClasspathIndex doesn't support jmods. So, only handle the bootstrap classpath here.
         String bootClasspath = System.getProperty("sun.boot.class.path");
         if (bootClasspath != null) {
@@ -34,19 +32,41 @@ class LocalCompiler implements Compiler {
                     .map(Paths::get)
                     .filter(Files::exists)
                     .collect(Collectors.toList());
-            for (Path path : paths) {
-                index.addPath(StandardLocation.PLATFORM_CLASS_PATH, path);
-            }
+            index.addPaths(StandardLocation.PLATFORM_CLASS_PATH, paths);
         }
         compiler = ToolProvider.getSystemJavaCompiler();
     }
 
     @Override
     public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs) {
+        return compile(units, extraJavacArgs, false, null);
+    }
+
+    @Override
+    public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, OutputListener listener) {
+        OutputForwarder forwarder = new OutputForwarder(listener);
+        CompileResult result = compile(units, extraJavacArgs, false, forwarder);
+        forwarder.rethrow();
+        return result;
+    }
+
+    @Override
+    public CompileResult check(Collection<CompileUnit> units, List<String> extraJavacArgs) {
+        return compile(units, extraJavacArgs, true, null);
+    }
+
+    private CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, boolean checkOnly, @Nullable OutputListener listener) {
         List<String> args = new ArrayList<>();
         args.add("-g");
         args.add("-proc:none");
         args.add("-XDuseUnsharedTable=true");
+        if (checkOnly) {
+            // Stop after flow analysis, before desugaring and code generation. Unlike JavacTask.analyze,
+            // this keeps the normal log output and success state of call(). Java 8 and 9+ spell it differently,
+            // javac ignores the one it doesn't know.
+            args.add("-XDshouldStopPolicyIfNoError=FLOW");
+            args.add("-XDshould-stop.ifNoError=FLOW");
+        }
         args.addAll(extraJavacArgs);
 
         Map<String, byte[]> outputs = new LinkedHashMap<>();
@@ -56,12 +76,12 @@ class LocalCompiler implements Compiler {
         try {
             JavaCompiler.CompilationTask task = compiler.getTask(
                     logWriter,
-                    getFileManager(compiler, outputs),
+                    getFileManager(compiler, listener != null ? listener : outputs::put),
                     null,
                     args,
                     null,
                     units.stream()
-                            .map(e -> new StringSource(e.sourceUri, e.source))
+                            .map(UnitSource::new)
                             .collect(Collectors.toList())
             );
 
@@ -77,12 +97,22 @@ class LocalCompiler implements Compiler {
         );
     }
 
+    @Override
+    public void rescanClasspath() {
+        try {
+            index.rescan();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to rescan classpath.", ex);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         index.close();
     }
 
-    private JavaFileManager getFileManager(JavaCompiler compiler, Map<String, byte[]> outputs) {
+    private JavaFileManager getFileManager(JavaCompiler compiler, OutputListener outputs) throws IOException {
+        index.applyChanges();
         return new ForwardingJavaFileManager<JavaFileManager>(index.fileManager(compiler.getStandardFileManager(null, null, null))) {
             @Override
             public JavaFileObject getJavaFileForOutput(Location location, String cName, JavaFileObject.Kind kind, FileObject sibling) {
@@ -92,7 +122,7 @@ class LocalCompiler implements Compiler {
                         return new ByteArrayOutputStream() {
                             @Override
                             public void close() {
-                                outputs.put(cName.replace('.', '/') + ".class", toByteArray());
+                                outputs.onOutput(cName.replace('.', '/') + ".class", toByteArray());
                             }
                         };
                     }
@@ -119,18 +149,23 @@ class LocalCompiler implements Compiler {
         };
     }
 
-    private static class StringSource extends SimpleJavaFileObject {
+    private static class UnitSource extends SimpleJavaFileObject {
+
+        private final CompileUnit unit;
 
-        private final String content;
+        public UnitSource(CompileUnit unit) {
+            super(unit.sourceUri, Kind.SOURCE);
+            this.unit = unit;
+        }
 
-        public StringSource(URI uri, String content) {
-            super(uri, Kind.SOURCE);
-            this.content = content;
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            return unit.getCharContent();
         }
 
         @Override
-        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
-            return content;
+        public InputStream openInputStream() throws IOException {
+            return unit.openInputStream();
         }
     }
 }
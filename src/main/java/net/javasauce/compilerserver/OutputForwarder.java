@@ -0,0 +1,44 @@
+package net.javasauce.compilerserver;
+
+import net.javasauce.compilerserver.Compiler.OutputListener;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Forwards outputs to a caller's {@link OutputListener}, isolating the compiler from
+ * any exception it throws.
+ * <p>
+ * Once the listener has thrown, no further outputs are forwarded to it. The exception is
+ * rethrown by {@link #rethrow()}, once the compile has finished.
+ */
+final class OutputForwarder implements OutputListener {
+
+    private final OutputListener listener;
+    private volatile @Nullable Throwable failure;
+
+    OutputForwarder(OutputListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onOutput(String name, byte[] bytes) {
+        if (failure != null) return;
+
+        try {
+            listener.onOutput(name, bytes);
+        } catch (Throwable ex) {
+            failure = ex;
+        }
+    }
+
+    /**
+     * Rethrow the exception thrown by the listener, if any.
+     */
+    public void rethrow() {
+        Throwable ex = failure;
+        if (ex == null) return;
+
+        if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+        if (ex instanceof Error) throw (Error) ex;
+        throw new RuntimeException("Output listener failed.", ex);
+    }
+}
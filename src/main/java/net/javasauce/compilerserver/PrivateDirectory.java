@@ -0,0 +1,71 @@
+package net.javasauce.compilerserver;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Per-user directories under the shared temp directory, which only the current user may access.
+ * <p>
+ * On POSIX file systems the directory is created {@code rwx------}, and an existing directory is
+ * only used if it is a real directory owned by the current user, without any group or other permissions.
+ * Elsewhere, such as on Windows, the temp directory is already per-user, and no checks are made.
+ */
+final class PrivateDirectory {
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(
+            PosixFilePermission.OWNER_READ,
+            PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.OWNER_EXECUTE
+    );
+
+    private PrivateDirectory() {
+    }
+
+    /**
+     * @param name The base name of the directory.
+     * @return The path of the directory for the current user, under the temp directory.
+     */
+    public static Path inTemp(String name) {
+        String user = System.getProperty("user.name", "unknown").replaceAll("[^A-Za-z0-9._-]", "_");
+        return Paths.get(System.getProperty("java.io.tmpdir"), name + "-" + user).toAbsolutePath();
+    }
+
+    /**
+     * Create the given directory, or verify an existing one is private to the current user.
+     *
+     * @param dir The directory.
+     * @return The same directory.
+     * @throws IOException If the directory could not be created, or an existing one is not private.
+     */
+    public static Path ensure(Path dir) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return Files.createDirectories(dir);
+        }
+
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            // The umask may have removed some of our permissions, never any others.
+            Files.setPosixFilePermissions(dir, OWNER_ONLY);
+        } catch (FileAlreadyExistsException ignored) {
+        }
+
+        PosixFileAttributes attrs = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isDirectory()) {
+            throw new IOException("Refusing to use " + dir + ", it is not a directory.");
+        }
+        UserPrincipal us = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attrs.owner().equals(us)) {
+            throw new IOException("Refusing to use " + dir + ", it is owned by " + attrs.owner().getName() + ".");
+        }
+        if (!OWNER_ONLY.containsAll(attrs.permissions())) {
+            throw new IOException("Refusing to use " + dir + ", it is accessible by other users: " + PosixFilePermissions.toString(attrs.permissions()));
+        }
+        return dir;
+    }
+}
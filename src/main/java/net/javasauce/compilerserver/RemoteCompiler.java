@@ -1,22 +1,30 @@
 package net.javasauce.compilerserver;
 
+import net.javasauce.compilerserver.packet.CompileOutputPacket;
 import net.javasauce.compilerserver.packet.CompileRequestPacket;
 import net.javasauce.compilerserver.packet.CompileResultPacket;
+import net.javasauce.compilerserver.packet.RescanClasspathPacket;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.CodeSource;
+import java.security.MessageDigest;
 import java.security.ProtectionDomain;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -27,79 +35,97 @@ class RemoteCompiler implements Compiler {
     private static final Logger LOGGER = LoggerFactory.getLogger(RemoteCompiler.class);
 
     private static final String OVERRIDE_PATH = System.getProperty("net.javasauce.RemoteCompiler.jar_Path");
-    private static final boolean DEBUG = Boolean.getBoolean("net.javasauce.RemoteCompiler.debug");
+    private static final long DAEMON_START_TIMEOUT = TimeUnit.SECONDS.toMillis(Long.getLong("net.javasauce.RemoteCompiler.daemonStartTimeout", 60));
+    private static final Object DAEMON_LOCK = new Object();
+
+    private static final boolean COALESCE = Boolean.getBoolean("net.javasauce.RemoteCompiler.coalesce");
+    private static final CompileOutputPacket END_OF_OUTPUT = new CompileOutputPacket(new UUID(0, 0), "", new byte[0]);
 
     private final Map<UUID, CompletableFuture<CompileResult>> pending = new ConcurrentHashMap<>();
+    // Outputs of streamed requests, handed from the read thread to the calling thread.
+    private final Map<UUID, BlockingQueue<CompileOutputPacket>> streamedOutputs = new ConcurrentHashMap<>();
+    private final CompileCoalescer coalescer = new CompileCoalescer();
 
-    private final Process process;
-    private final ObjectOutputStream out;
+    private final @Nullable Process process;
+    private final @Nullable Socket socket;
+    private final RemoteCompilerObjectOutputStream out;
     private final RemoteCompilerObjectInputStream in;
+    private final ChannelCompression.@Nullable Output compressedOut;
+    private final ChannelCompression.@Nullable Input compressedIn;
 
     private final Thread readThread;
-    private final Thread logThread;
+    private final @Nullable Thread logThread;
 
     private boolean exitRequested;
 
     public RemoteCompiler(Path javaExecutable, List<String> jvmArgs, Collection<Path> compileClasspath) throws IOException {
-        Path ourJarPath = getOurPath();
-        if (OVERRIDE_PATH != null) {
-            ourJarPath = Paths.get(OVERRIDE_PATH);
-        }
-        if (ourJarPath == null) {
-            throw new RuntimeException("Unable to locate our own jar on the classpath. Please ensure it not shadowed, or provide the 'net.javasauce.RemoteCompiler.jar_Path' sysprop");
-        }
-
-        List<String> args = new ArrayList<>();
-        args.add(javaExecutable.toAbsolutePath().toString());
-        if (DEBUG) {
-            args.add("-Dnet.javasauce.RemoteCompiler.debug=true");
-        }
-        args.addAll(jvmArgs);
-
-        args.add("-cp");
-        args.add(ourJarPath.toAbsolutePath().toString());
-        args.add(RemoteMain.class.getName());
-        args.addAll(compileClasspath.stream()
-                .map(e -> e.toAbsolutePath().toString())
-                .collect(Collectors.toList())
-        );
-
-        ProcessBuilder builder = new ProcessBuilder(args);
-        LOGGER.info("Starting Java compiler on vm {}", javaExecutable.toAbsolutePath());
+        this(startProcess(javaExecutable, jvmArgs, compileClasspath), null);
+    }
 
-        process = builder.start();
+    private RemoteCompiler(@Nullable Process process, @Nullable Socket socket) throws IOException {
+        this.process = process;
+        this.socket = socket;
 
-        logThread = new Thread(() -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    LOGGER.info("CompilerServer: {}", line);
+        if (process != null) {
+            logThread = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        LOGGER.info("CompilerServer: {}", line);
+                    }
+                } catch (Throwable ignored) {
                 }
-            } catch (Throwable ignored) {
-            }
-        });
-        logThread.setName("RemoteCompiler Log");
-        logThread.setDaemon(true);
-        logThread.start();
+            });
+            logThread.setName("RemoteCompiler Log");
+            logThread.setDaemon(true);
+            logThread.start();
 
-        LOGGER.info("RemoteCompiler started!");
+            LOGGER.info("RemoteCompiler started!");
+        } else {
+            logThread = null;
+        }
 
         LOGGER.info("Negotiating..");
-        in = new RemoteCompilerObjectInputStream(process.getInputStream());
-        out = new ObjectOutputStream(process.getOutputStream());
+        InputStream is;
+        OutputStream os;
+        if (process != null) {
+            is = process.getInputStream();
+            os = process.getOutputStream();
+        } else {
+            assert socket != null;
+            is = new BufferedInputStream(socket.getInputStream());
+            os = new BufferedOutputStream(socket.getOutputStream());
+        }
+        byte codec = ChannelCompression.negotiate(is, os, ChannelCompression.COMPRESSION ? ChannelCompression.CODEC_DEFLATE : ChannelCompression.CODEC_NONE);
+        if (codec == ChannelCompression.CODEC_DEFLATE) {
+            LOGGER.info("Using compression.");
+            is = compressedIn = new ChannelCompression.Input(is);
+            os = compressedOut = new ChannelCompression.Output(os);
+        } else {
+            compressedIn = null;
+            compressedOut = null;
+        }
+        in = new RemoteCompilerObjectInputStream(is);
+        out = new RemoteCompilerObjectOutputStream(os);
         out.flush();
+        if (socket != null) {
+            // Set by tryConnect, so a daemon which stops answering can't hang us before this point.
+            socket.setSoTimeout(0);
+        }
 
         readThread = new Thread(() -> {
             try {
-                while (process.isAlive()) {
-                    Object packet = in.readObject();
-                    if (packet instanceof CompileResultPacket) {
+                while (isAlive()) {
+                    Object packet = in.readPacket();
+                    if (packet instanceof CompileOutputPacket) {
+                        handleCompileOutput((CompileOutputPacket) packet);
+                    } else if (packet instanceof CompileResultPacket) {
                         handleCompileResult((CompileResultPacket) packet);
                     } else {
                         throw new RuntimeException("Unknown packet: " + packet.getClass().getName());
                     }
                 }
-            } catch (WriteAbortedException | EOFException ex) {
+            } catch (WriteAbortedException | EOFException | SocketException ex) {
                 if (exitRequested) return; // Ignore any errors, exit has been requested.
                 LOGGER.error("RemoteCompiler quit unexpectedly.");
                 stop();
@@ -116,13 +142,191 @@ class RemoteCompiler implements Compiler {
         LOGGER.info("Finished negotiating, ready.");
     }
 
+    /**
+     * Connect to a shared {@link RemoteDaemon}, starting one if required.
+     * <p>
+     * Daemons are shared between all clients which request the same JDK, JVM arguments and classpath.
+     */
+    static RemoteCompiler connect(Path javaExecutable, List<String> jvmArgs, Collection<Path> compileClasspath) throws IOException {
+        List<String> args = buildArgs(javaExecutable, jvmArgs, RemoteDaemon.class, compileClasspath);
+        String key = daemonKey(args);
+        // The daemon key is its first argument, before the classpath.
+        args.add(args.indexOf(RemoteDaemon.class.getName()) + 1, key);
+
+        Path infoFile = RemoteDaemon.infoFile(key);
+        PrivateDirectory.ensure(RemoteDaemon.DAEMON_DIR);
+        // Lock within the JVM and across JVMs, so only a single client will start the daemon.
+        synchronized (DAEMON_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(RemoteDaemon.DAEMON_DIR.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed.
+                lockChannel.lock();
+                for (int attempt = 0; ; attempt++) {
+                    Socket socket = tryConnect(infoFile);
+                    if (socket == null) {
+                        socket = startDaemon(args, key, infoFile);
+                    }
+                    LOGGER.info("Connected to RemoteCompiler daemon {} on port {}.", key, socket.getPort());
+                    try {
+                        return new RemoteCompiler(null, socket);
+                    } catch (IOException ex) {
+                        socket.close();
+                        // The daemon may have been exiting for being idle as we connected, try once more.
+                        if (attempt != 0) throw ex;
+                        LOGGER.warn("Lost connection to RemoteCompiler daemon {}, retrying.", key, ex);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Socket startDaemon(List<String> args, String key, Path infoFile) throws IOException {
+        // Anything left over is stale.
+        Files.deleteIfExists(infoFile);
+
+        Path logFile = RemoteDaemon.DAEMON_DIR.resolve(key + ".log");
+        ProcessBuilder builder = new ProcessBuilder(args)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile.toFile()));
+        LOGGER.info("Starting RemoteCompiler daemon {} on vm {}, logging to {}", key, args.get(0), logFile);
+        Process process = builder.start();
+        process.getOutputStream().close();
+
+        long deadline = System.currentTimeMillis() + DAEMON_START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            Socket socket = tryConnect(infoFile);
+            if (socket != null) return socket;
+
+            if (!process.isAlive()) {
+                throw new IOException("RemoteCompiler daemon exited with code " + process.exitValue() + ". See " + logFile);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                process.destroy();
+                throw new RuntimeException("Interrupted waiting for daemon to start.", ex);
+            }
+        }
+        process.destroy();
+        throw new IOException("Timed out waiting for RemoteCompiler daemon to start. See " + logFile);
+    }
+
+    // Performs the handshake described in RemoteDaemon. The read timeout is left in place
+    // until the connection has been negotiated.
+    private static @Nullable Socket tryConnect(Path infoFile) throws IOException {
+        Properties props = RemoteDaemon.readInfo(infoFile);
+        if (props == null) return null;
+
+        String port = props.getProperty("port");
+        String token = props.getProperty("token");
+        if (port == null || token == null) return null;
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port)), RemoteDaemon.HANDSHAKE_TIMEOUT);
+            socket.setSoTimeout(RemoteDaemon.HANDSHAKE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            byte[] challenge = RemoteDaemon.newChallenge();
+            dos.write(challenge);
+            dos.flush();
+
+            byte[] daemonProof = new byte[RemoteDaemon.PROOF_LENGTH];
+            dis.readFully(daemonProof);
+            byte[] daemonChallenge = new byte[RemoteDaemon.CHALLENGE_LENGTH];
+            dis.readFully(daemonChallenge);
+            if (!MessageDigest.isEqual(RemoteDaemon.proof(token, "daemon", challenge), daemonProof)) {
+                LOGGER.warn("Port {} is not our RemoteCompiler daemon, ignoring it.", port);
+                socket.close();
+                return null;
+            }
+            dos.write(RemoteDaemon.proof(token, "client", daemonChallenge));
+            dos.flush();
+            if (dis.read() != 1) {
+                socket.close();
+                return null;
+            }
+            return socket;
+        } catch (IOException | NumberFormatException ex) {
+            // Daemon is dead, or not answering.
+            socket.close();
+            return null;
+        }
+    }
+
+    private static Process startProcess(Path javaExecutable, List<String> jvmArgs, Collection<Path> compileClasspath) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(buildArgs(javaExecutable, jvmArgs, RemoteMain.class, compileClasspath));
+        LOGGER.info("Starting Java compiler on vm {}", javaExecutable.toAbsolutePath());
+
+        return builder.start();
+    }
+
+    private static List<String> buildArgs(Path javaExecutable, List<String> jvmArgs, Class<?> mainClass, Collection<Path> compileClasspath) {
+        Path ourJarPath = getOurPath();
+        if (OVERRIDE_PATH != null) {
+            ourJarPath = Paths.get(OVERRIDE_PATH);
+        }
+        if (ourJarPath == null) {
+            throw new RuntimeException("Unable to locate our own jar on the classpath. Please ensure it not shadowed, or provide the 'net.javasauce.RemoteCompiler.jar_Path' sysprop");
+        }
+
+        List<String> args = new ArrayList<>();
+        args.add(javaExecutable.toAbsolutePath().toString());
+        // Forward our configuration to the server.
+        for (String prop : System.getProperties().stringPropertyNames()) {
+            if (prop.startsWith("net.javasauce.RemoteCompiler.")) {
+                args.add("-D" + prop + "=" + System.getProperty(prop));
+            }
+        }
+        args.addAll(jvmArgs);
+
+        args.add("-cp");
+        args.add(ourJarPath.toAbsolutePath().toString());
+        args.add(mainClass.getName());
+        args.addAll(compileClasspath.stream()
+                .map(e -> e.toAbsolutePath().toString())
+                .collect(Collectors.toList())
+        );
+        return args;
+    }
+
+    private static String daemonKey(List<String> args) throws IOException {
+        MessageDigest digest = Hashing.sha256();
+        for (String arg : args) {
+            digest.update(arg.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        // Include our own jar, so a different version of this library doesn't attach to an incompatible daemon.
+        Path ourJarPath = Paths.get(args.get(args.indexOf("-cp") + 1));
+        if (Files.isRegularFile(ourJarPath)) {
+            digest.update(String.valueOf(Files.size(ourJarPath)).getBytes(StandardCharsets.UTF_8));
+            digest.update(String.valueOf(Files.getLastModifiedTime(ourJarPath).toMillis()).getBytes(StandardCharsets.UTF_8));
+        }
+        return Hashing.toHex(digest.digest()).substring(0, 32);
+    }
+
+    boolean isAlive() {
+        if (process != null) return process.isAlive();
+
+        assert socket != null;
+        return !socket.isClosed();
+    }
+
     private synchronized void writePacket(Object obj) throws IOException {
-        out.writeObject(obj);
-        out.flush();
+        out.writePacket(obj);
+    }
+
+    private void handleCompileOutput(CompileOutputPacket packet) {
+        BlockingQueue<CompileOutputPacket> queue = streamedOutputs.get(packet.id);
+        // The caller gave up on the request, such as by being interrupted. The server
+        // still sends the rest of its outputs, which nobody wants anymore.
+        if (queue == null) return;
+
+        queue.add(packet);
     }
 
     private void handleCompileResult(CompileResultPacket packet) {
-        CompletableFuture<CompileResult> result = pending.get(packet.id);
+        CompletableFuture<CompileResult> result = pending.remove(packet.id);
         if (result == null) {
             throw new RuntimeException("CompletableFuture has gone missing??");
         }
@@ -132,24 +336,90 @@ class RemoteCompiler implements Compiler {
 
     @Override
     public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs) {
-        if (!process.isAlive()) throw new RuntimeException("CompilerServer is dead.");
+        return request(units, extraJavacArgs, false, null, null);
+    }
+
+    @Override
+    public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, Map<String, String> knownDigests) {
+        return request(units, extraJavacArgs, false, new HashMap<>(knownDigests), null);
+    }
+
+    @Override
+    public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, OutputListener listener) {
+        return request(units, extraJavacArgs, false, null, listener);
+    }
 
-        UUID id = UUID.randomUUID();
+    @Override
+    public CompileResult check(Collection<CompileUnit> units, List<String> extraJavacArgs) {
+        return request(units, extraJavacArgs, true, null, null);
+    }
+
+    private CompileResult request(Collection<CompileUnit> units, List<String> extraJavacArgs, boolean checkOnly, @Nullable Map<String, String> knownDigests, @Nullable OutputListener listener) {
+        if (!isAlive()) throw new RuntimeException("CompilerServer is dead.");
+
+        CompileRequestPacket packet = new CompileRequestPacket(
+                UUID.randomUUID(),
+                new ArrayList<>(units),
+                new ArrayList<>(extraJavacArgs),
+                checkOnly,
+                knownDigests,
+                listener != null
+        );
+        RequestTrace.record(packet);
+        if (listener != null) {
+            // Each caller has its own listener, so streamed requests are never coalesced.
+            return streamRequest(packet, listener);
+        }
+        if (!COALESCE) return sendRequest(packet).join();
+
+        String key;
+        try {
+            key = CompileCoalescer.key(packet);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to read compile units.", ex);
+        }
+        // The result may be shared with other callers, each must get its own to modify.
+        return CompileCoalescer.copy(coalescer.coalesce(key, () -> sendRequest(packet)).join());
+    }
+
+    private CompileResult streamRequest(CompileRequestPacket packet, OutputListener listener) {
+        // The read thread only queues each output, the listener is called from this thread. So a slow
+        // listener can't hold up other requests, and it may safely make requests of its own.
+        BlockingQueue<CompileOutputPacket> queue = new LinkedBlockingQueue<>();
+        OutputForwarder forwarder = new OutputForwarder(listener);
+        streamedOutputs.put(packet.id, queue);
+        try {
+            CompletableFuture<CompileResult> result = sendRequest(packet);
+            // Outputs are always queued before the result is handled.
+            result.whenComplete((r, ex) -> queue.add(END_OF_OUTPUT));
+
+            CompileOutputPacket output;
+            while ((output = queue.take()) != END_OF_OUTPUT) {
+                forwarder.onOutput(output.name, output.bytes);
+            }
+            CompileResult r = result.join();
+            forwarder.rethrow();
+            return r;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for compile outputs.", ex);
+        } finally {
+            streamedOutputs.remove(packet.id);
+        }
+    }
+
+    private CompletableFuture<CompileResult> sendRequest(CompileRequestPacket packet) {
         CompletableFuture<CompileResult> result = new CompletableFuture<>();
-        pending.put(id, result);
+        pending.put(packet.id, result);
 
         try {
-            writePacket(new CompileRequestPacket(
-                    id,
-                    new ArrayList<>(units),
-                    new ArrayList<>(extraJavacArgs)
-            ));
+            writePacket(packet);
         } catch (IOException ex) {
-            pending.remove(id);
+            pending.remove(packet.id);
             throw new RuntimeException("Failed to communicate with CompilerServer.", ex);
         }
 
-        return result.join();
+        return result;
     }
 
     private void stop() {
@@ -158,17 +428,48 @@ class RemoteCompiler implements Compiler {
 
         exitRequested = true;
         LOGGER.info("Stopping RemoteCompiler.");
-        process.destroy();
+        if (process != null) {
+            process.destroy();
+        } else {
+            assert socket != null;
+            try {
+                // Just disconnect, the daemon stays alive for other clients.
+                socket.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close daemon connection.", ex);
+            }
+        }
         for (CompletableFuture<CompileResult> value : pending.values()) {
             value.completeExceptionally(new RuntimeException("RemoteCompiler quit unexpectedly."));
         }
         try {
-            process.waitFor();
-            readThread.join();
-            logThread.join();
+            if (process != null) {
+                process.waitFor();
+            }
+            // We may be stopping from the read thread.
+            if (Thread.currentThread() != readThread) {
+                readThread.join();
+            }
+            if (logThread != null) {
+                logThread.join();
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted waiting for compiler and threads to stop.", e);
         }
+        if (compressedOut != null && compressedIn != null) {
+            LOGGER.info("Compressed {} bytes sent to {}, and {} bytes received from {}.", compressedOut.rawBytes(), compressedOut.wireBytes(), compressedIn.rawBytes(), compressedIn.wireBytes());
+        }
+    }
+
+    @Override
+    public void rescanClasspath() {
+        // The server handles this before reading any further requests, so no need to wait.
+        coalescer.clear();
+        try {
+            writePacket(new RescanClasspathPacket());
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to communicate with CompilerServer.", ex);
+        }
     }
 
     @Override
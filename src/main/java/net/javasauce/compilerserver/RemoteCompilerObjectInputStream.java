@@ -1,17 +1,19 @@
 package net.javasauce.compilerserver;
 
+import net.javasauce.compilerserver.packet.CompileOutputPacket;
 import net.javasauce.compilerserver.packet.CompileRequestPacket;
 import net.javasauce.compilerserver.packet.CompileResultPacket;
+import net.javasauce.compilerserver.packet.RescanClasspathPacket;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
 /**
  * A safer {@link ObjectInputStream} which only allows deserializing specific classes.
@@ -23,6 +25,10 @@ class RemoteCompilerObjectInputStream extends ObjectInputStream {
     public final Set<String> allowedClasses = new HashSet<>();
     public final List<String> allowedPackages = new ArrayList<>();
 
+    // Shared memory files referenced by the packet currently being read.
+    private final Map<String, FileChannel> sharedFiles = new HashMap<>();
+    private final CachedBlob.ReceiverCache cachedBlobs = new CachedBlob.ReceiverCache();
+
     public RemoteCompilerObjectInputStream(InputStream is) throws IOException {
         super(is);
         allowedClasses.add("boolean");
@@ -40,9 +46,30 @@ class RemoteCompilerObjectInputStream extends ObjectInputStream {
 
         addAllowedClass(URI.class);
         addAllowedClass(CompileRequestPacket.class);
+        addAllowedClass(CompileOutputPacket.class);
         addAllowedClass(CompileResultPacket.class);
+        addAllowedClass(RescanClasspathPacket.class);
         addAllowedClass(Compiler.CompileUnit.class);
         addAllowedClass(Compiler.CompileResult.class);
+        addAllowedClass(SharedMemoryBlob.class);
+        addAllowedClass(CachedBlob.class);
+
+        enableResolveObject(true);
+    }
+
+    /**
+     * Read a single packet.
+     * <p>
+     * Any shared memory files referenced by the packet are deleted once it has been read.
+     *
+     * @return The packet.
+     */
+    public Object readPacket() throws IOException, ClassNotFoundException {
+        try {
+            return readObject();
+        } finally {
+            releaseSharedFiles();
+        }
     }
 
     public void addAllowedClass(Class<?> clazz) {
@@ -73,4 +100,31 @@ class RemoteCompilerObjectInputStream extends ObjectInputStream {
 
         return super.resolveClass(desc);
     }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+        if (obj instanceof SharedMemoryBlob) {
+            SharedMemoryBlob blob = (SharedMemoryBlob) obj;
+            FileChannel channel = sharedFiles.get(blob.file);
+            if (channel == null) {
+                channel = FileChannel.open(blob.path(), StandardOpenOption.READ);
+                sharedFiles.put(blob.file, channel);
+            }
+            return blob.read(channel);
+        }
+        if (obj instanceof CachedBlob) {
+            return cachedBlobs.resolve((CachedBlob) obj);
+        }
+        return obj;
+    }
+
+    private void releaseSharedFiles() throws IOException {
+        if (sharedFiles.isEmpty()) return;
+
+        for (Map.Entry<String, FileChannel> entry : sharedFiles.entrySet()) {
+            entry.getValue().close();
+            SharedMemoryBlob.delete(Paths.get(entry.getKey()));
+        }
+        sharedFiles.clear();
+    }
 }
@@ -0,0 +1,114 @@
+package net.javasauce.compilerserver;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@link ObjectOutputStream} counterpart to {@link RemoteCompilerObjectInputStream}.
+ * <p>
+ * When enabled with the {@code net.javasauce.RemoteCompiler.sharedMemory} sysprop, any
+ * {@link String} or {@code byte[]} larger than {@code net.javasauce.RemoteCompiler.sharedMemoryThreshold}
+ * bytes is written into a memory mapped file, with only a {@link SharedMemoryBlob} sent over the stream.
+ * Files are created in {@code /dev/shm} where available, otherwise the temp directory. This can be
+ * overridden with the {@code net.javasauce.RemoteCompiler.sharedMemoryDir} sysprop. See {@link SharedMemoryBlob}
+ * for how, and on which JVMs, these files are released.
+ * <p>
+ * When enabled with the {@code net.javasauce.RemoteCompiler.dedup} sysprop, any {@link String} or
+ * {@code byte[]} larger than {@code net.javasauce.RemoteCompiler.dedupThreshold} bytes is sent as a
+ * {@link CachedBlob}, only sending the content if the receiver does not already hold it. The receiver
+ * holds at most {@code net.javasauce.RemoteCompiler.dedupCacheSize} bytes of content per connection.
+ */
+class RemoteCompilerObjectOutputStream extends ObjectOutputStream {
+
+    private static final boolean SHARED_MEMORY = Boolean.getBoolean("net.javasauce.RemoteCompiler.sharedMemory");
+    private static final int SHARED_MEMORY_THRESHOLD = Integer.getInteger("net.javasauce.RemoteCompiler.sharedMemoryThreshold", 64 * 1024);
+    private static final boolean DEDUP = Boolean.getBoolean("net.javasauce.RemoteCompiler.dedup");
+    // Must stay above the length of the hashes themselves.
+    private static final int DEDUP_THRESHOLD = Math.max(256, Integer.getInteger("net.javasauce.RemoteCompiler.dedupThreshold", 1024));
+    private static final long DEDUP_CACHE_SIZE = Long.getLong("net.javasauce.RemoteCompiler.dedupCacheSize", 64 * 1024 * 1024);
+
+    private final CachedBlob.SenderCache sentBlobs = new CachedBlob.SenderCache(DEDUP_CACHE_SIZE);
+    private @Nullable SharedMemoryBlob.Region region;
+
+    public RemoteCompilerObjectOutputStream(OutputStream os) throws IOException {
+        super(os);
+        enableReplaceObject(SHARED_MEMORY || DEDUP);
+    }
+
+    /**
+     * Write a single packet and flush the stream.
+     * <p>
+     * Callers are expected to synchronize.
+     *
+     * @param packet The packet.
+     */
+    public void writePacket(Object packet) throws IOException {
+        try {
+            writeObject(packet);
+            // Don't retain every packet we have ever sent in the handle table.
+            reset();
+            flush();
+        } catch (IOException ex) {
+            if (region != null) {
+                region.discard();
+                region = null;
+            }
+            throw ex;
+        }
+        if (region != null) {
+            // The receiver now owns the file, and is responsible for deleting it. Should it never
+            // read the packet, the file is swept once we have exited, see SharedMemoryBlob.
+            region.close();
+            region = null;
+        }
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+        if (obj instanceof String) {
+            String str = (String) obj;
+            if (DEDUP && str.length() >= DEDUP_THRESHOLD) {
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                CachedBlob blob = sentBlobs.blobFor(CachedBlob.hash(bytes, true), bytes.length, true, () -> {
+                    Object shared = shared(str);
+                    // Re-use the bytes we already encoded.
+                    return shared == str ? bytes : shared;
+                });
+                if (blob != null) return blob;
+            }
+            return shared(str);
+        }
+        if (obj instanceof byte[]) {
+            byte[] bytes = (byte[]) obj;
+            if (DEDUP && bytes.length >= DEDUP_THRESHOLD) {
+                CachedBlob blob = sentBlobs.blobFor(CachedBlob.hash(bytes, false), bytes.length, false, () -> shared(bytes));
+                if (blob != null) return blob;
+            }
+            return shared(bytes);
+        }
+        return obj;
+    }
+
+    private Object shared(String str) throws IOException {
+        if (!SHARED_MEMORY || str.length() * 2L < SHARED_MEMORY_THRESHOLD) return str;
+
+        return region().write(str);
+    }
+
+    private Object shared(byte[] bytes) throws IOException {
+        if (!SHARED_MEMORY || bytes.length < SHARED_MEMORY_THRESHOLD) return bytes;
+
+        return region().write(bytes);
+    }
+
+    private SharedMemoryBlob.Region region() throws IOException {
+        if (region == null) {
+            region = new SharedMemoryBlob.Region();
+        }
+        return region;
+    }
+}
@@ -0,0 +1,244 @@
+package net.javasauce.compilerserver;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Main entrypoint for a shared, long-lived compiler server.
+ * <p>
+ * Unlike {@link RemoteMain}, which serves a single client over stdin/stdout, the daemon listens
+ * on a loopback TCP port and serves any number of clients. All clients share the same compiler,
+ * and by extension the same classpath index and JIT warm-up.
+ * <p>
+ * Daemons are identified by a key, derived by the client from the JDK, arguments and classpath
+ * the daemon is started with. Once listening, the daemon publishes its port and an access token
+ * to {@code <tmpdir>/compilerserver-daemons-<user>/<key>.properties}, see {@link PrivateDirectory}.
+ * <p>
+ * The token itself is never sent. Each side sends the other a random challenge, and must answer the
+ * other's challenge with an HMAC keyed by the token, see {@link #proof}. The client checks the daemon's
+ * answer first, so it never trusts something else which happens to be listening on a stale port. The
+ * daemon acknowledges the client's answer with a single {@code 1} byte. The handshake must complete
+ * within {@link #HANDSHAKE_TIMEOUT} milliseconds.
+ * <p>
+ * The daemon exits once it has had no clients for {@code net.javasauce.RemoteCompiler.daemonIdleTimeout}
+ * seconds, 10 minutes by default.
+ */
+public class RemoteDaemon {
+
+    static final Path DAEMON_DIR = PrivateDirectory.inTemp("compilerserver-daemons");
+    static final int HANDSHAKE_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+    static final int CHALLENGE_LENGTH = 32;
+    static final int PROOF_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final PrintStream logger = RemoteMain.logger;
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(Long.getLong("net.javasauce.RemoteCompiler.daemonIdleTimeout", 600));
+
+    private final String key;
+    private final String token;
+    private final Compiler compiler;
+    private final ExecutorService compileExecutor = RemoteMain.newCompileExecutor();
+    // Shared, so identical requests from different clients are also coalesced.
+    private final CompileCoalescer coalescer = new CompileCoalescer();
+    private final ServerSocket serverSocket;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile long lastActive = System.currentTimeMillis();
+
+    public static void main(String[] args) {
+        logger.println("Starting RemoteCompiler daemon.");
+        logger.println("Using vm at " + System.getProperty("java.home"));
+        logger.println("   Java Version " + System.getProperty("java.version"));
+        logger.println("   Java Vendor  " + System.getProperty("java.vendor"));
+        try {
+            new RemoteDaemon(args).run();
+        } catch (Throwable ex) {
+            logger.println("Fatal error.");
+            ex.printStackTrace(logger);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @param args The daemon key, followed by the compile classpath.
+     */
+    public RemoteDaemon(String[] args) throws IOException {
+        key = args[0];
+        compiler = Compiler.forLocal(Arrays.stream(args, 1, args.length)
+                .map(Paths::get)
+                .collect(Collectors.toList()));
+
+        token = Hashing.toHex(newChallenge());
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    private void run() throws IOException {
+        Path infoFile = infoFile(key);
+        writeInfo(infoFile);
+        logger.println("RemoteCompiler daemon " + key + " listening on port " + serverSocket.getLocalPort());
+        try {
+            serverSocket.setSoTimeout((int) Math.min(IDLE_TIMEOUT, TimeUnit.SECONDS.toMillis(10)));
+            int num = 0;
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException ex) {
+                    if (connections.get() == 0 && System.currentTimeMillis() - lastActive >= IDLE_TIMEOUT) {
+                        logger.println("No clients connected for " + TimeUnit.MILLISECONDS.toSeconds(IDLE_TIMEOUT) + "s, exiting.");
+                        return;
+                    }
+                    continue;
+                }
+                connections.incrementAndGet();
+                Thread thread = new Thread(() -> handleConnection(socket));
+                thread.setName("RemoteDaemon Connection " + num++);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            serverSocket.close();
+            deleteInfo(infoFile);
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            // Don't let a client hold a connection open without authenticating.
+            s.setSoTimeout(HANDSHAKE_TIMEOUT);
+            DataInputStream dis = new DataInputStream(s.getInputStream());
+            DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+            byte[] clientChallenge = new byte[CHALLENGE_LENGTH];
+            dis.readFully(clientChallenge);
+            byte[] challenge = newChallenge();
+            dos.write(proof(token, "daemon", clientChallenge));
+            dos.write(challenge);
+            dos.flush();
+
+            byte[] received = new byte[PROOF_LENGTH];
+            dis.readFully(received);
+            if (!MessageDigest.isEqual(proof(token, "client", challenge), received)) {
+                logger.println("Rejecting client with invalid token.");
+                return;
+            }
+            dos.writeByte(1);
+            dos.flush();
+            s.setSoTimeout(0);
+
+            new RemoteMain(
+                    compiler,
+                    compileExecutor,
+                    coalescer,
+                    new BufferedInputStream(s.getInputStream()),
+                    new BufferedOutputStream(s.getOutputStream())
+            ).run();
+        } catch (EOFException | SocketException ignored) {
+            // Client disconnected.
+        } catch (Throwable ex) {
+            logger.println("Error on client connection.");
+            ex.printStackTrace(logger);
+        } finally {
+            lastActive = System.currentTimeMillis();
+            connections.decrementAndGet();
+        }
+    }
+
+    private void writeInfo(Path infoFile) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("port", String.valueOf(serverSocket.getLocalPort()));
+        props.setProperty("token", token);
+
+        PrivateDirectory.ensure(DAEMON_DIR);
+        Path tmp = infoFile.resolveSibling(infoFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            // Only we should be able to read the token.
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            props.store(os, "RemoteCompiler daemon");
+        }
+        Files.move(tmp, infoFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteInfo(Path infoFile) {
+        try {
+            // Only delete the file if it still points to us, another daemon may have replaced it.
+            Properties props = readInfo(infoFile);
+            if (props != null && token.equals(props.getProperty("token"))) {
+                Files.deleteIfExists(infoFile);
+            }
+        } catch (IOException ex) {
+            logger.println("Failed to delete daemon info file.");
+            ex.printStackTrace(logger);
+        }
+    }
+
+    static Path infoFile(String key) {
+        return DAEMON_DIR.resolve(key + ".properties");
+    }
+
+    static @Nullable Properties readInfo(Path infoFile) throws IOException {
+        // Never trust a file someone else could have written.
+        PrivateDirectory.ensure(infoFile.getParent());
+        if (!Files.exists(infoFile)) return null;
+
+        Properties props = new Properties();
+        try (InputStream is = Files.newInputStream(infoFile)) {
+            props.load(is);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        return props;
+    }
+
+    static byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Answer a handshake challenge.
+     *
+     * @param token     The daemon's token.
+     * @param side      The side answering, {@code daemon} or {@code client}, so an answer can't be reflected back.
+     * @param challenge The other side's challenge.
+     * @return The answer, {@link #PROOF_LENGTH} bytes.
+     */
+    static byte[] proof(String token, String side, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(side.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("HmacSHA256 not available?", ex);
+        }
+    }
+}
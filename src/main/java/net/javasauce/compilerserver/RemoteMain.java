@@ -1,13 +1,17 @@
 package net.javasauce.compilerserver;
 
+import net.javasauce.compilerserver.packet.CompileOutputPacket;
 import net.javasauce.compilerserver.packet.CompileRequestPacket;
 import net.javasauce.compilerserver.packet.CompileResultPacket;
+import net.javasauce.compilerserver.packet.RescanClasspathPacket;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -23,20 +27,12 @@ import java.util.stream.Stream;
 public class RemoteMain {
 
     private static final boolean DEBUG = Boolean.getBoolean("net.javasauce.RemoteCompiler.debug");
-    private static final PrintStream logger = System.err;
+    private static final boolean COALESCE = Boolean.getBoolean("net.javasauce.RemoteCompiler.coalesce");
+    static final PrintStream logger = System.err;
 
-    private final ExecutorService compileExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
-        final AtomicInteger num = new AtomicInteger();
-
-        @Override
-        public Thread newThread(@NotNull Runnable r) {
-            Thread thread = new Thread(r);
-            thread.setName("Compile Thread " + num.getAndIncrement());
-            thread.setDaemon(true);
-            return thread;
-        }
-    });
-    private final ObjectOutputStream out;
+    private final ExecutorService compileExecutor;
+    private final CompileCoalescer coalescer;
+    private final RemoteCompilerObjectOutputStream out;
     private final RemoteCompilerObjectInputStream in;
     private final Compiler compiler;
 
@@ -51,38 +47,84 @@ public class RemoteMain {
         logger.println("   OS Arch      " + System.getProperty("os.arch"));
         logger.println("   OS Version   " + System.getProperty("os.version"));
         try {
-            new RemoteMain(args).run();
+            Compiler compiler = Compiler.forLocal(Stream.of(args)
+                    .map(Paths::get)
+                    .collect(Collectors.toList()));
+            new RemoteMain(compiler, newCompileExecutor(), new CompileCoalescer(), System.in, System.out).run();
         } catch (Throwable ex) {
             logger.println("Fatal error.");
             ex.printStackTrace(logger);
         }
     }
 
-    public RemoteMain(String[] args) throws IOException {
-        compiler = Compiler.forLocal(Stream.of(args)
-                .map(Paths::get)
-                .collect(Collectors.toList()));
-        out = new ObjectOutputStream(System.out);
+    /**
+     * Create a new server for a single client connection.
+     *
+     * @param compiler        The compiler to run requests on. May be shared with other connections.
+     * @param compileExecutor The executor to run compile requests on. May be shared with other connections.
+     * @param coalescer       The coalescer for identical requests. May be shared with other connections.
+     * @param is              The stream to read requests from.
+     * @param os              The stream to write results to.
+     */
+    public RemoteMain(Compiler compiler, ExecutorService compileExecutor, CompileCoalescer coalescer, InputStream is, OutputStream os) throws IOException {
+        this.compiler = compiler;
+        this.compileExecutor = compileExecutor;
+        this.coalescer = coalescer;
+        if (ChannelCompression.accept(is, os) == ChannelCompression.CODEC_DEFLATE) {
+            if (DEBUG) logger.println("Using compression.");
+            is = new ChannelCompression.Input(is);
+            os = new ChannelCompression.Output(os);
+        }
+        out = new RemoteCompilerObjectOutputStream(os);
         out.flush();
-        in = new RemoteCompilerObjectInputStream(System.in);
+        in = new RemoteCompilerObjectInputStream(is);
         logger.println("RemoteCompiler ready for commands.");
     }
 
+    static ExecutorService newCompileExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            final AtomicInteger num = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NotNull Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("Compile Thread " + num.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Inline on the read thread, so requests read after this see the new classpath.
+    private void handleRescan() {
+        try {
+            compiler.rescanClasspath();
+            coalescer.clear();
+        } catch (Throwable ex) {
+            logger.println("Failed to rescan classpath.");
+            ex.printStackTrace(logger);
+        }
+    }
+
     private synchronized void writePacket(Object packet) {
         try {
-            out.writeObject(packet);
-            out.flush();
+            out.writePacket(packet);
         } catch (IOException ex) {
             logger.println("Error writing packet.");
             ex.printStackTrace(logger);
         }
     }
 
-    private void run() throws IOException, ClassNotFoundException {
+    /**
+     * Process requests until the connection is closed.
+     */
+    public void run() throws IOException, ClassNotFoundException {
         while (running) {
-            Object packet = in.readObject();
+            Object packet = in.readPacket();
             if (packet instanceof CompileRequestPacket) {
                 handleCompileRequest((CompileRequestPacket) packet);
+            } else if (packet instanceof RescanClasspathPacket) {
+                handleRescan();
             } else {
                 logger.println("Unknown packet: " + packet.getClass().getName());
                 stop();
@@ -95,7 +137,7 @@ public class RemoteMain {
         try {
             in.close();
         } catch (IOException e) {
-            logger.println("Error closing stdin");
+            logger.println("Error closing input stream.");
             e.printStackTrace(logger);
         }
     }
@@ -105,11 +147,22 @@ public class RemoteMain {
         compileExecutor.submit(() -> {
             if (DEBUG) logger.println("Executing request " + packet.id + " on thread " + Thread.currentThread().getName());
             try {
-                Compiler.CompileResult result = compiler.compile(
-                        packet.units,
-                        packet.compilerArgs
-                );
-                writePacket(new CompileResultPacket(packet.id, result));
+                CompletableFuture<Compiler.CompileResult> result;
+                if (COALESCE && !packet.streamOutput) {
+                    // If an identical request is already running, this returns immediately and we just attach to it.
+                    result = coalescer.coalesce(CompileCoalescer.key(packet), () -> compile(packet));
+                } else {
+                    result = compile(packet);
+                }
+                result.whenComplete((r, ex) -> {
+                    if (ex != null) {
+                        logger.println("Compiler crash!");
+                        ex.printStackTrace(logger);
+                        stop();
+                        return;
+                    }
+                    writePacket(new CompileResultPacket(packet.id, r));
+                });
             } catch (Throwable ex) {
                 logger.println("Compiler crash!");
                 ex.printStackTrace(logger);
@@ -117,4 +170,36 @@ public class RemoteMain {
             }
         });
     }
+
+    private CompletableFuture<Compiler.CompileResult> compile(CompileRequestPacket packet) {
+        CompletableFuture<Compiler.CompileResult> future = new CompletableFuture<>();
+        try {
+            if (packet.checkOnly) {
+                future.complete(compiler.check(
+                        packet.units,
+                        packet.compilerArgs
+                ));
+            } else if (packet.streamOutput) {
+                future.complete(compiler.compile(
+                        packet.units,
+                        packet.compilerArgs,
+                        (name, bytes) -> writePacket(new CompileOutputPacket(packet.id, name, bytes))
+                ));
+            } else if (packet.knownDigests != null) {
+                future.complete(compiler.compile(
+                        packet.units,
+                        packet.compilerArgs,
+                        packet.knownDigests
+                ));
+            } else {
+                future.complete(compiler.compile(
+                        packet.units,
+                        packet.compilerArgs
+                ));
+            }
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
 }
@@ -0,0 +1,208 @@
+package net.javasauce.compilerserver;
+
+import net.javasauce.compilerserver.Compiler.CompileResult;
+import net.javasauce.compilerserver.packet.CompileRequestPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replays a trace recorded by {@link RequestTrace} against a {@link Compiler}, and reports
+ * throughput and latency.
+ * <p>
+ * Usage: {@code ReplayMain [options] <trace file>}
+ * <pre>
+ * --compiler &lt;local|remote|daemon|routing&gt;  The compiler to drive. Defaults to remote.
+ * --java &lt;path&gt;                             The Java executable for remote and daemon compilers. Defaults to the current JVM.
+ * --toolchain &lt;version&gt;=&lt;path&gt;             A toolchain for the routing compiler, may be repeated.
+ * --pool-size &lt;n&gt;                          The routing compiler's pool size per toolchain. Defaults to 1.
+ * --classpath &lt;paths&gt;                      The compile classpath, separated by the platform path separator.
+ * --rate &lt;original|max|scale&gt;              Replay at the recorded rate, as fast as possible, or the recorded rate
+ *                                          multiplied by the given factor. Defaults to original.
+ * --threads &lt;n&gt;                            The maximum number of requests in flight. Defaults to 64.
+ * </pre>
+ * For paced replays, latency is measured from when each request was due, so a compiler
+ * which falls behind is reported as such.
+ */
+public class ReplayMain {
+
+    public static void main(String[] args) throws Exception {
+        String compilerType = "remote";
+        Path javaExecutable = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Map<Integer, Path> toolchains = new TreeMap<>();
+        int poolSize = 1;
+        List<Path> classpath = new ArrayList<>();
+        double scale = 1;
+        int threads = 64;
+        Path trace = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (trace != null) usage("Unexpected argument: " + arg);
+                trace = Paths.get(arg);
+                continue;
+            }
+            if (i + 1 >= args.length) usage("Missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--compiler":
+                    compilerType = value;
+                    break;
+                case "--java":
+                    javaExecutable = Paths.get(value);
+                    break;
+                case "--toolchain": {
+                    int idx = value.indexOf('=');
+                    if (idx == -1) usage("Expected <version>=<path>: " + value);
+                    toolchains.put(Integer.parseInt(value.substring(0, idx)), Paths.get(value.substring(idx + 1)));
+                    break;
+                }
+                case "--pool-size":
+                    poolSize = Integer.parseInt(value);
+                    break;
+                case "--classpath":
+                    classpath = Stream.of(value.split(File.pathSeparator))
+                            .filter(e -> !e.isEmpty())
+                            .map(Paths::get)
+                            .collect(Collectors.toList());
+                    break;
+                case "--rate":
+                    if (value.equals("original")) {
+                        scale = 1;
+                    } else if (value.equals("max")) {
+                        scale = 0;
+                    } else {
+                        scale = Double.parseDouble(value);
+                        if (scale <= 0) usage("Rate scale must be positive: " + value);
+                    }
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                default:
+                    usage("Unknown option: " + arg);
+            }
+        }
+        if (trace == null) usage("No trace file specified.");
+
+        Compiler compiler;
+        switch (compilerType) {
+            case "local":
+                compiler = Compiler.forLocal(classpath);
+                break;
+            case "remote":
+                compiler = Compiler.of(javaExecutable, classpath);
+                break;
+            case "daemon":
+                compiler = Compiler.connect(javaExecutable, Collections.emptyList(), classpath);
+                break;
+            case "routing":
+                if (toolchains.isEmpty()) usage("The routing compiler requires at least one --toolchain.");
+                compiler = Compiler.routing(toolchains, Collections.emptyList(), classpath, poolSize, 5, TimeUnit.MINUTES);
+                break;
+            default:
+                usage("Unknown compiler: " + compilerType);
+                return;
+        }
+
+        try (Compiler c = compiler) {
+            replay(c, trace, scale, threads);
+        }
+        System.exit(0);
+    }
+
+    private static void replay(Compiler compiler, Path trace, double scale, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r);
+            thread.setName("Replay Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore inFlight = new Semaphore(threads);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger crashed = new AtomicInteger();
+
+        int count = 0;
+        long start = System.nanoTime();
+        try (RequestTrace.Reader reader = new RequestTrace.Reader(trace)) {
+            RequestTrace.Entry entry;
+            while ((entry = reader.next()) != null) {
+                long due = 0;
+                if (scale != 0) {
+                    due = start + (long) (entry.offsetNanos / scale);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                inFlight.acquire();
+                CompileRequestPacket packet = entry.packet;
+                long from = scale != 0 ? due : System.nanoTime();
+                executor.execute(() -> {
+                    try {
+                        CompileResult result = run(compiler, packet);
+                        if (result.javacCrash != null) {
+                            crashed.incrementAndGet();
+                        } else if (!result.success) {
+                            failed.incrementAndGet();
+                        }
+                    } catch (Throwable ex) {
+                        crashed.incrementAndGet();
+                        ex.printStackTrace();
+                    } finally {
+                        latencies.add(System.nanoTime() - from);
+                        inFlight.release();
+                    }
+                });
+                count++;
+            }
+        }
+        inFlight.acquire(threads);
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        double seconds = elapsed / 1e9;
+        System.out.printf("Requests:   %d (%d unsuccessful, %d crashed)%n", count, failed.get(), crashed.get());
+        System.out.printf("Elapsed:    %.3f s%n", seconds);
+        System.out.printf("Throughput: %.2f req/s%n", count / seconds);
+        System.out.printf("Latency:    p50 %s, p95 %s, p99 %s, max %s%n",
+                millis(percentile(sorted, 50)),
+                millis(percentile(sorted, 95)),
+                millis(percentile(sorted, 99)),
+                millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1])
+        );
+    }
+
+    private static CompileResult run(Compiler compiler, CompileRequestPacket packet) {
+        if (packet.checkOnly) return compiler.check(packet.units, packet.compilerArgs);
+        if (packet.knownDigests != null) return compiler.compile(packet.units, packet.compilerArgs, packet.knownDigests);
+        if (packet.streamOutput) return compiler.compile(packet.units, packet.compilerArgs, (name, bytes) -> { });
+        return compiler.compile(packet.units, packet.compilerArgs);
+    }
+
+    // Nearest rank.
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) return 0;
+
+        int rank = (int) Math.ceil(percentile / 100D * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: ReplayMain [--compiler local|remote|daemon|routing] [--java <path>] [--toolchain <version>=<path>]... [--pool-size <n>] [--classpath <paths>] [--rate original|max|<scale>] [--threads <n>] <trace file>");
+        System.exit(1);
+    }
+}
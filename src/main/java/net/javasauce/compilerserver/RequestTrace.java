@@ -0,0 +1,200 @@
+package net.javasauce.compilerserver;
+
+import net.javasauce.compilerserver.Compiler.CompileUnit;
+import net.javasauce.compilerserver.packet.CompileRequestPacket;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the requests made to {@link RemoteCompiler}s to a trace file, so they can
+ * be replayed later with {@link ReplayMain}.
+ * <p>
+ * Enabled by setting the {@code net.javasauce.RemoteCompiler.traceFile} sysprop to the file to
+ * write. Every compiler in the JVM records to the same file, which is overwritten on first use.
+ * <p>
+ * The trace is a GZIP compressed object stream of each {@link CompileRequestPacket}, with the
+ * time it was made relative to the start of the trace. Units backed by a file are recorded
+ * with the content of the file at the time of the request. Each entry is flushed as it is
+ * written, so a trace may be read even if the JVM did not exit cleanly.
+ */
+final class RequestTrace {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestTrace.class);
+
+    private static final String TRACE_FILE = System.getProperty("net.javasauce.RemoteCompiler.traceFile");
+
+    private static final String MAGIC = "CompilerServerTrace";
+    private static final int VERSION = 1;
+
+    private static @Nullable ObjectOutputStream out;
+    private static boolean failed;
+    private static long startNanos;
+
+    private RequestTrace() {
+    }
+
+    /**
+     * Record a request, if tracing is enabled.
+     *
+     * @param packet The request.
+     */
+    public static void record(CompileRequestPacket packet) {
+        if (TRACE_FILE == null) return;
+
+        long now = System.nanoTime();
+        try {
+            CompileRequestPacket snapshot = new CompileRequestPacket(
+                    packet.id,
+                    snapshot(packet.units),
+                    packet.compilerArgs,
+                    packet.checkOnly,
+                    packet.knownDigests,
+                    packet.streamOutput
+            );
+            synchronized (RequestTrace.class) {
+                if (failed) return;
+                if (out == null) {
+                    out = open(Paths.get(TRACE_FILE));
+                    startNanos = now;
+                }
+                out.writeLong(Math.max(0, now - startNanos));
+                out.writeObject(snapshot);
+                out.reset();
+                out.flush();
+            }
+        } catch (IOException ex) {
+            synchronized (RequestTrace.class) {
+                if (!failed) {
+                    LOGGER.warn("Failed to write request trace, tracing is disabled.", ex);
+                }
+                failed = true;
+            }
+        }
+    }
+
+    private static ObjectOutputStream open(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+
+        ObjectOutputStream os = new ObjectOutputStream(new GZIPOutputStream(Files.newOutputStream(file), 8192, true));
+        os.writeUTF(MAGIC);
+        os.writeInt(VERSION);
+        os.flush();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (RequestTrace.class) {
+                try {
+                    os.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }));
+        return os;
+    }
+
+    private static List<CompileUnit> snapshot(List<CompileUnit> units) throws IOException {
+        List<CompileUnit> snapshot = new ArrayList<>(units.size());
+        for (CompileUnit unit : units) {
+            if (unit.source != null) {
+                snapshot.add(unit);
+                continue;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (InputStream is = unit.openInputStream()) {
+                byte[] buf = new byte[8192];
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    bos.write(buf, 0, read);
+                }
+            }
+            snapshot.add(CompileUnit.ofUtf8(unit.sourceUri, bos.toByteArray()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * A single recorded request.
+     */
+    static final class Entry {
+
+        /**
+         * When the request was made, in nanoseconds since the first request in the trace.
+         */
+        public final long offsetNanos;
+        public final CompileRequestPacket packet;
+
+        private Entry(long offsetNanos, CompileRequestPacket packet) {
+            this.offsetNanos = offsetNanos;
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * Reads the entries of a trace file, in the order they were recorded.
+     */
+    static final class Reader implements Closeable {
+
+        private final RemoteCompilerObjectInputStream in;
+
+        public Reader(Path file) throws IOException {
+            in = new RemoteCompilerObjectInputStream(new TruncatedGZIPInputStream(new BufferedInputStream(Files.newInputStream(file))));
+            if (!MAGIC.equals(in.readUTF())) throw new IOException("Not a request trace: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported trace version " + version + ": " + file);
+        }
+
+        /**
+         * Read the next entry.
+         *
+         * @return The entry, or {@code null} at the end of the trace.
+         */
+        public @Nullable Entry next() throws IOException {
+            long offset;
+            try {
+                offset = in.readLong();
+            } catch (EOFException ex) {
+                return null;
+            }
+            try {
+                return new Entry(offset, (CompileRequestPacket) in.readPacket());
+            } catch (ClassNotFoundException ex) {
+                throw new IOException("Failed to read trace entry.", ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Treats a missing GZIP trailer as the end of the stream. As each entry is sync flushed,
+     * this is the end of the last complete entry if the recording JVM did not exit cleanly.
+     */
+    private static final class TruncatedGZIPInputStream extends GZIPInputStream {
+
+        private TruncatedGZIPInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            try {
+                return super.read(buf, off, len);
+            } catch (EOFException ex) {
+                return -1;
+            }
+        }
+    }
+}
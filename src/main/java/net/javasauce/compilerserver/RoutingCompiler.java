@@ -0,0 +1,363 @@
+package net.javasauce.compilerserver;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link Compiler} which routes each request to a toolchain, based on the target
+ * version requested by its javac arguments.
+ * <p>
+ * Each toolchain has a pool of compilers, which is started on first use, and closed again
+ * once it has been idle for the configured timeout.
+ */
+class RoutingCompiler implements Compiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingCompiler.class);
+
+    private final NavigableMap<Integer, Pool> pools = new TreeMap<>();
+    private final long idleTimeout;
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setName("RoutingCompiler Reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RoutingCompiler(Map<Integer, Path> toolchains, int poolSize, long idleTimeout, Factory factory) {
+        if (toolchains.isEmpty()) throw new IllegalArgumentException("At least one toolchain is required.");
+        if (poolSize < 1) throw new IllegalArgumentException("Pool size must be at least 1.");
+
+        toolchains.forEach((version, javaExecutable) -> pools.put(version, new Pool(version, javaExecutable, poolSize, factory)));
+        this.idleTimeout = idleTimeout;
+        long period = Math.max(1, idleTimeout / 2);
+        reaper.scheduleWithFixedDelay(this::reapIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs) {
+        return route(extraJavacArgs, (compiler, args) -> compiler.compile(units, args));
+    }
+
+    @Override
+    public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, Map<String, String> knownDigests) {
+        return route(extraJavacArgs, (compiler, args) -> compiler.compile(units, args, knownDigests));
+    }
+
+    @Override
+    public CompileResult compile(Collection<CompileUnit> units, List<String> extraJavacArgs, OutputListener listener) {
+        return route(extraJavacArgs, (compiler, args) -> compiler.compile(units, args, listener));
+    }
+
+    @Override
+    public CompileResult check(Collection<CompileUnit> units, List<String> extraJavacArgs) {
+        return route(extraJavacArgs, (compiler, args) -> compiler.check(units, args));
+    }
+
+    @Override
+    public void rescanClasspath() {
+        // Compilers started later index the classpath fresh.
+        for (Pool pool : pools.values()) {
+            pool.rescanClasspath();
+        }
+    }
+
+    private CompileResult route(List<String> extraJavacArgs, BiFunction<Compiler, List<String>, CompileResult> func) {
+        Pool pool = selectPool(extraJavacArgs);
+        List<String> args = pool.version < 9 ? replaceRelease(extraJavacArgs, pool.version) : extraJavacArgs;
+        Compiler compiler = pool.acquire();
+        try {
+            return func.apply(compiler, args);
+        } finally {
+            pool.release(compiler);
+        }
+    }
+
+    // Java 8's javac does not support --release. For its own version, compiling against its own
+    // platform classes with -source/-target is equivalent. For older releases it would silently
+    // compile against the newer platform classes, so those are rejected instead.
+    private static List<String> replaceRelease(List<String> args, int version) {
+        List<String> replaced = new ArrayList<>(args.size());
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            String release = null;
+            if (arg.equals("--release") && i + 1 < args.size()) {
+                release = args.get(++i);
+            } else if (arg.startsWith("--release=")) {
+                release = arg.substring("--release=".length());
+            }
+            if (release != null) {
+                if (parseVersion(release) != version) {
+                    throw new IllegalArgumentException("--release " + release + " is not supported by the Java " + version + " toolchain. Add a Java " + release + " toolchain, or use -source/-target.");
+                }
+                replaced.addAll(Arrays.asList("-source", release, "-target", release));
+            } else {
+                replaced.add(arg);
+            }
+        }
+        return replaced;
+    }
+
+    private Pool selectPool(List<String> extraJavacArgs) {
+        Integer target = findTargetVersion(extraJavacArgs);
+        if (target == null) return pools.lastEntry().getValue();
+
+        // Exact match, otherwise the closest newer toolchain, which can compile for older releases.
+        Map.Entry<Integer, Pool> entry = pools.ceilingEntry(target);
+        if (entry == null) {
+            throw new IllegalArgumentException("No toolchain available for Java " + target + ". Available: " + pools.keySet());
+        }
+        return entry.getValue();
+    }
+
+    private void reapIdle() {
+        long now = System.currentTimeMillis();
+        for (Pool pool : pools.values()) {
+            pool.closeIfIdle(now - idleTimeout);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reaper.shutdownNow();
+        IOException ex = null;
+        for (Pool pool : pools.values()) {
+            try {
+                pool.shutdown();
+            } catch (IOException e) {
+                if (ex == null) {
+                    ex = e;
+                } else {
+                    ex.addSuppressed(e);
+                }
+            }
+        }
+        if (ex != null) throw ex;
+    }
+
+    /**
+     * Find the Java version requested by the given javac arguments.
+     * <p>
+     * Checks {@code --release}, then {@code -target}, then {@code -source}.
+     *
+     * @param args The javac arguments.
+     * @return The version, or {@code null} if none was requested.
+     */
+    static @Nullable Integer findTargetVersion(List<String> args) {
+        String release = findArg(args, "--release");
+        if (release != null) return parseVersion(release);
+
+        String target = findArg(args, "-target", "--target");
+        if (target != null) return parseVersion(target);
+
+        String source = findArg(args, "-source", "--source");
+        if (source != null) return parseVersion(source);
+
+        return null;
+    }
+
+    private static @Nullable String findArg(List<String> args, String... names) {
+        String found = null;
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            for (String name : names) {
+                if (arg.equals(name) && i + 1 < args.size()) {
+                    found = args.get(i + 1);
+                } else if (arg.startsWith(name + "=")) {
+                    found = arg.substring(name.length() + 1);
+                }
+            }
+        }
+        // Last one wins, same as javac.
+        return found;
+    }
+
+    private static int parseVersion(String version) {
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unable to parse Java version: " + version, ex);
+        }
+    }
+
+    /**
+     * Creates the compilers for a toolchain.
+     */
+    interface Factory {
+
+        Compiler create(Path javaExecutable) throws IOException;
+    }
+
+    private static class Pool {
+
+        private final int version;
+        private final Path javaExecutable;
+        private final int size;
+        private final Factory factory;
+
+        // Guarded by this.
+        private final List<Compiler> compilers = new ArrayList<>();
+        private final Map<Compiler, Integer> inFlight = new IdentityHashMap<>();
+        private int starting;
+        private long lastUsed;
+        private boolean closed;
+
+        private Pool(int version, Path javaExecutable, int size, Factory factory) {
+            this.version = version;
+            this.javaExecutable = javaExecutable;
+            this.size = size;
+            this.factory = factory;
+        }
+
+        public Compiler acquire() {
+            List<Compiler> dead = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    while (true) {
+                        if (closed) throw new IllegalStateException("RoutingCompiler is closed.");
+                        removeDead(dead);
+
+                        // Use the least busy compiler, unless they are all busy and we have room for more.
+                        Compiler best = null;
+                        int bestCount = Integer.MAX_VALUE;
+                        for (Compiler compiler : compilers) {
+                            int count = inFlight.get(compiler);
+                            if (count < bestCount) {
+                                best = compiler;
+                                bestCount = count;
+                            }
+                        }
+                        boolean room = compilers.size() + starting < size;
+                        if (best != null && (bestCount == 0 || !room)) {
+                            inFlight.merge(best, 1, Integer::sum);
+                            return best;
+                        }
+                        if (room) {
+                            starting++;
+                            break;
+                        }
+                        // Every compiler is still starting, wait for one.
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new RuntimeException("Interrupted waiting for a compiler to start.", ex);
+                        }
+                    }
+                }
+            } finally {
+                closeAll(dead);
+            }
+
+            // Starting a compiler takes a while, don't block requests on other compilers or the reaper.
+            LOGGER.info("Starting compiler for Java {}.", version);
+            Compiler compiler = null;
+            boolean added = false;
+            try {
+                compiler = factory.create(javaExecutable);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to start compiler for Java " + version, ex);
+            } finally {
+                synchronized (this) {
+                    starting--;
+                    if (compiler != null && !closed) {
+                        compilers.add(compiler);
+                        inFlight.put(compiler, 1);
+                        added = true;
+                    }
+                    notifyAll();
+                }
+            }
+            if (!added) {
+                // Closed while we were starting.
+                closeAll(Collections.singletonList(compiler));
+                throw new IllegalStateException("RoutingCompiler is closed.");
+            }
+            return compiler;
+        }
+
+        public synchronized void rescanClasspath() {
+            for (Compiler compiler : compilers) {
+                compiler.rescanClasspath();
+            }
+        }
+
+        public synchronized void release(Compiler compiler) {
+            inFlight.computeIfPresent(compiler, (k, v) -> v - 1);
+            lastUsed = System.currentTimeMillis();
+        }
+
+        // Compilers whose process has died are removed, so the next request starts a replacement.
+        private void removeDead(List<Compiler> dead) {
+            for (Iterator<Compiler> itr = compilers.iterator(); itr.hasNext(); ) {
+                Compiler compiler = itr.next();
+                if (compiler instanceof RemoteCompiler && !((RemoteCompiler) compiler).isAlive()) {
+                    LOGGER.warn("Compiler for Java {} has died, removing it.", version);
+                    itr.remove();
+                    inFlight.remove(compiler);
+                    dead.add(compiler);
+                }
+            }
+        }
+
+        private static void closeAll(List<Compiler> compilers) {
+            for (Compiler compiler : compilers) {
+                try {
+                    compiler.close();
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed to close compiler.", ex);
+                }
+            }
+        }
+
+        public synchronized void closeIfIdle(long idleSince) {
+            if (compilers.isEmpty() || starting != 0 || lastUsed > idleSince) return;
+            for (int count : inFlight.values()) {
+                if (count != 0) return;
+            }
+
+            LOGGER.info("Stopping idle compilers for Java {}.", version);
+            try {
+                close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to stop idle compilers for Java {}.", version, ex);
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            IOException ex = null;
+            for (Compiler compiler : compilers) {
+                try {
+                    compiler.close();
+                } catch (IOException e) {
+                    if (ex == null) {
+                        ex = e;
+                    } else {
+                        ex.addSuppressed(e);
+                    }
+                }
+            }
+            compilers.clear();
+            inFlight.clear();
+            if (ex != null) throw ex;
+        }
+
+        public synchronized void shutdown() throws IOException {
+            closed = true;
+            notifyAll();
+            close();
+        }
+    }
+}
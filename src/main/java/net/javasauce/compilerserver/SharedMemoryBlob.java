@@ -0,0 +1,325 @@
+package net.javasauce.compilerserver;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A reference to a large {@link String} or {@code byte[]} which was written into a
+ * memory mapped file, instead of being serialized inline over the control channel.
+ * <p>
+ * Only the location of the blob is sent over the channel, the receiver maps the
+ * same file and reads the content directly from it.
+ * <p>
+ * Strings are stored as raw UTF-16 chars, avoiding any encoding step on either side.
+ * <p>
+ * Each mapping is explicitly unmapped as soon as it has been copied to or from, and the
+ * receiver deletes the file once the packet has been read. This releases the memory
+ * immediately, and lets the delete succeed on Windows, where mapped files can't be deleted.
+ * Unmapping relies on JVM internals ({@code sun.misc.Cleaner} on Java 8, {@code Unsafe.invokeCleaner}
+ * on Java 9+). On a JVM which allows neither, mappings are only released once garbage collected.
+ * On Windows such files are deleted later instead, and on Linux their space in {@code /dev/shm}
+ * is held until then.
+ * <p>
+ * Should the receiver never read a packet, such as when it is stopped with packets still in flight, its
+ * files are never deleted by it. Each file is named with the pid of the process which wrote it, and any
+ * file whose writer has exited is swept by the next process to create a region. Files from writers we
+ * can't check are swept once they are a day old.
+ */
+final class SharedMemoryBlob implements Serializable {
+
+    private static final @Nullable Consumer<ByteBuffer> UNMAPPER = findUnmapper();
+    // Files we could not delete yet, because they are still mapped somewhere.
+    private static final Set<Path> UNDELETED = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The absolute path to the backing file.
+     */
+    public final String file;
+    /**
+     * The byte offset into the file.
+     */
+    public final long offset;
+    /**
+     * The length of the blob. In chars for strings, bytes otherwise.
+     */
+    public final int length;
+    /**
+     * If this blob is a {@link String}, otherwise {@code byte[]}.
+     */
+    public final boolean string;
+
+    private SharedMemoryBlob(String file, long offset, int length, boolean string) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.string = string;
+    }
+
+    /**
+     * Get the path to the backing file.
+     * <p>
+     * The path is validated to be one of our shared memory files, as the receiver
+     * will delete it once the packet has been read.
+     *
+     * @return The path.
+     */
+    public Path path() throws IOException {
+        Path path = Paths.get(file);
+        String fName = path.getFileName().toString();
+        if (!Region.DIR.equals(path.getParent()) || !fName.startsWith(Region.PREFIX) || !fName.endsWith(Region.SUFFIX)) {
+            throw new IOException("Refusing to read shared memory blob outside of the shared memory directory: " + file);
+        }
+        return path;
+    }
+
+    /**
+     * Read the blob from the given channel, which must be open on {@link #file}.
+     *
+     * @param channel The channel.
+     * @return Either a {@link String} or {@code byte[]}.
+     */
+    public Object read(FileChannel channel) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, string ? length * 2L : length);
+        try {
+            if (string) {
+                char[] chars = new char[length];
+                buf.asCharBuffer().get(chars);
+                return new String(chars);
+            }
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            return bytes;
+        } finally {
+            unmap(buf);
+        }
+    }
+
+    /**
+     * A file which blobs are appended to, whilst writing a single packet.
+     */
+    static final class Region implements AutoCloseable {
+
+        private static final Path DIR = findSharedDir();
+        private static final String PREFIX = "compilerserver-shm-";
+        private static final String SUFFIX = ".bin";
+        private static final long PID = currentPid();
+        private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+        // The reader may still be reading a file, just after its writer exits.
+        private static final long SWEEP_GRACE = TimeUnit.MINUTES.toMillis(1);
+        private static final long SWEEP_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+        private static long lastSweep;
+
+        private final Path file;
+        private final FileChannel channel;
+        private long size;
+
+        Region() throws IOException {
+            sweep();
+            file = Files.createTempFile(DIR, PREFIX + PID + "-", SUFFIX);
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        public SharedMemoryBlob write(String str) throws IOException {
+            long offset = size;
+            MappedByteBuffer buf = map(str.length() * 2L);
+            try {
+                buf.asCharBuffer().put(str);
+            } finally {
+                unmap(buf);
+            }
+            return new SharedMemoryBlob(file.toString(), offset, str.length(), true);
+        }
+
+        public SharedMemoryBlob write(byte[] bytes) throws IOException {
+            long offset = size;
+            MappedByteBuffer buf = map(bytes.length);
+            try {
+                buf.put(bytes);
+            } finally {
+                unmap(buf);
+            }
+            return new SharedMemoryBlob(file.toString(), offset, bytes.length, false);
+        }
+
+        private MappedByteBuffer map(long len) throws IOException {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, size, len);
+            size += len;
+            return buf;
+        }
+
+        /**
+         * Delete the backing file. Used if writing the packet failed, and the
+         * receiver will never see the file.
+         */
+        public void discard() throws IOException {
+            close();
+            delete(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private static synchronized void sweep() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < SWEEP_INTERVAL) return;
+            lastSweep = now;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(DIR, PREFIX + "*" + SUFFIX)) {
+                for (Path file : stream) {
+                    try {
+                        long age = now - Files.getLastModifiedTime(file).toMillis();
+                        if (age < SWEEP_GRACE) continue;
+
+                        Boolean alive = isAlive(ownerPid(file.getFileName().toString()));
+                        if (alive != null ? !alive : age >= SWEEP_MAX_AGE) {
+                            Files.deleteIfExists(file);
+                        }
+                    } catch (IOException ignored) {
+                        // Deleted by someone else, or still mapped on Windows.
+                    }
+                }
+            } catch (IOException ignored) {
+                // Best effort, we will try again later.
+            }
+        }
+
+        private static long ownerPid(String fName) {
+            String name = fName.substring(PREFIX.length());
+            int dash = name.indexOf('-');
+            if (dash == -1) return -1;
+
+            try {
+                return Long.parseLong(name.substring(0, dash));
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        // Null if we can't tell.
+        private static @Nullable Boolean isAlive(long pid) {
+            if (pid <= 0) return null;
+            if (pid == PID) return true;
+
+            try {
+                // Java 9+
+                Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+                Optional<?> handle = (Optional<?>) processHandle.getMethod("of", long.class).invoke(null, pid);
+                return handle.isPresent() && (Boolean) processHandle.getMethod("isAlive").invoke(handle.get());
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+            }
+            if (Files.isDirectory(Paths.get("/proc/self"))) {
+                return Files.isDirectory(Paths.get("/proc/" + pid));
+            }
+            return null;
+        }
+
+        private static long currentPid() {
+            // Java 8 has no direct way to get this, the name is pid@host on all the JVMs we care about.
+            String name = ManagementFactory.getRuntimeMXBean().getName();
+            try {
+                return Long.parseLong(name.substring(0, name.indexOf('@')));
+            } catch (RuntimeException ex) {
+                return 0;
+            }
+        }
+
+        private static Path findSharedDir() {
+            String dir = System.getProperty("net.javasauce.RemoteCompiler.sharedMemoryDir");
+            if (dir != null) return Paths.get(dir).toAbsolutePath();
+
+            // Prefer tmpfs on Linux, so the file never touches a disk.
+            Path shm = Paths.get("/dev/shm");
+            if (Files.isDirectory(shm) && Files.isWritable(shm)) return shm;
+
+            return Paths.get(System.getProperty("java.io.tmpdir")).toAbsolutePath();
+        }
+    }
+
+    static void delete(Path file) {
+        // Retry anything left over from before, it may have been unmapped by the GC since.
+        for (Iterator<Path> itr = UNDELETED.iterator(); itr.hasNext(); ) {
+            if (tryDelete(itr.next())) {
+                itr.remove();
+            }
+        }
+        if (!tryDelete(file) && UNDELETED.add(file)) {
+            // Windows won't allow us to delete files which are still mapped, which they
+            // may be if we could not unmap them. Last resort, if the GC never gets to them.
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    private static boolean tryDelete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // The buffer must never be touched again after this.
+    private static void unmap(MappedByteBuffer buf) {
+        if (UNMAPPER == null) return;
+
+        try {
+            UNMAPPER.accept(buf);
+        } catch (Throwable ignored) {
+            // Left for the GC.
+        }
+    }
+
+    private static @Nullable Consumer<ByteBuffer> findUnmapper() {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buf -> invoke(invokeCleaner, unsafe, buf);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        try {
+            // Java 8
+            Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buf -> {
+                Object c = invoke(cleaner, buf);
+                if (c != null) invoke(clean, c);
+            };
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        return null;
+    }
+
+    private static @Nullable Object invoke(Method method, Object instance, Object... args) {
+        try {
+            return method.invoke(instance, args);
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
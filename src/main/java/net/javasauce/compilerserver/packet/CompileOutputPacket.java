@@ -0,0 +1,22 @@
+package net.javasauce.compilerserver.packet;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A single output of a streamed compile request, sent as soon as javac writes it.
+ * <p>
+ * Followed by a {@link CompileResultPacket} once the compile has finished.
+ */
+public class CompileOutputPacket implements Serializable {
+
+    public final UUID id;
+    public final String name;
+    public final byte[] bytes;
+
+    public CompileOutputPacket(UUID id, String name, byte[] bytes) {
+        this.id = id;
+        this.name = name;
+        this.bytes = bytes;
+    }
+}
@@ -1,9 +1,11 @@
 package net.javasauce.compilerserver.packet;
 
 import net.javasauce.compilerserver.Compiler;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -14,10 +16,25 @@ public class CompileRequestPacket implements Serializable {
     public final UUID id;
     public final List<Compiler.CompileUnit> units;
     public final List<String> compilerArgs;
+    /**
+     * If the units should only be checked, see {@link Compiler#check}.
+     */
+    public final boolean checkOnly;
+    /**
+     * The output digests already known to the client, if only changed outputs should be returned.
+     */
+    public final @Nullable Map<String, String> knownDigests;
+    /**
+     * If each output should be sent as a {@link CompileOutputPacket} as soon as it is written.
+     */
+    public final boolean streamOutput;
 
-    public CompileRequestPacket(UUID id, List<Compiler.CompileUnit> units, List<String> compilerArgs) {
+    public CompileRequestPacket(UUID id, List<Compiler.CompileUnit> units, List<String> compilerArgs, boolean checkOnly, @Nullable Map<String, String> knownDigests, boolean streamOutput) {
         this.id = id;
         this.units = units;
         this.compilerArgs = compilerArgs;
+        this.checkOnly = checkOnly;
+        this.knownDigests = knownDigests;
+        this.streamOutput = streamOutput;
     }
 }
@@ -0,0 +1,10 @@
+package net.javasauce.compilerserver.packet;
+
+import java.io.Serializable;
+
+/**
+ * Asks the server to re-scan the directory entries of its compile classpath, before
+ * handling any further requests.
+ */
+public class RescanClasspathPacket implements Serializable {
+}